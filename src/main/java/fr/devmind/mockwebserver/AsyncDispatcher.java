@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Handler for mock server requests that answers them later without holding a thread, for instance
+ * to hold long-polling requests until a test completes them:
+ *
+ * <pre>{@code
+ * CompletableFuture<MockResponse> next = new CompletableFuture<>();
+ * server.setDispatcher(new AsyncDispatcher() {
+ *     public CompletionStage<MockResponse> dispatchAsync(RecordedRequest request) {
+ *         return next;
+ *     }
+ * });
+ * ...
+ * next.complete(new MockResponse().setBody("event"));
+ * }</pre>
+ *
+ * <p>Requests waiting on a pending stage cost memory but no thread: the server resumes the
+ * connection or stream on its executor once the stage completes. A stage completed exceptionally
+ * fails the connection, or resets the stream.
+ */
+public abstract class AsyncDispatcher extends Dispatcher {
+    @Override
+    public abstract CompletionStage<MockResponse> dispatchAsync(RecordedRequest request);
+
+    /**
+     * Blocks until the stage returned by {@link #dispatchAsync} completes.
+     */
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        try {
+            return dispatchAsync(request).toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("dispatch failed", e.getCause());
+        }
+    }
+}
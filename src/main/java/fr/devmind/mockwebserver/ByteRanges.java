@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okio.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Answers {@code Range} requests with slices of a response body, as specified by <a
+ * href="https://tools.ietf.org/html/rfc7233">RFC 7233</a>. Slices share the segments of the body
+ * rather than copying its bytes.
+ */
+final class ByteRanges {
+    private ByteRanges() {
+    }
+
+    /**
+     * Returns the partial response to {@code range}, or {@code response} if the full body should be
+     * sent.
+     *
+     * @param range the request's {@code Range} header, or null.
+     * @param ifRange the request's {@code If-Range} header, or null.
+     */
+    static MockResponse apply(MockResponse response, String range, String ifRange) {
+        if (range == null || !response.getAcceptRanges()) return response;
+        if (!response.getStatus().split(" ", 3)[1].equals("200")) return response;
+        Buffer body = response.getBodyBuffer();
+        if (body == null || response.getHeaders().get("Transfer-encoding") != null) return response;
+        if (ifRange != null && !ifRange.equals(validator(response, ifRange))) return response;
+
+        long length = body.size();
+        List<long[]> ranges = parse(range, length);
+        if (ranges == null) return response; // Malformed ranges are ignored.
+        if (ranges.isEmpty()) {
+            return response.clone()
+                    .setStatus("HTTP/1.1 416 Range Not Satisfiable")
+                    .setBody(new Buffer())
+                    .setHeader("Content-Range", "bytes */" + length);
+        }
+
+        MockResponse result = response.clone().setStatus("HTTP/1.1 206 Partial Content");
+        if (ranges.size() == 1) {
+            long[] r = ranges.get(0);
+            return result
+                    .setBody(slice(body, r))
+                    .setHeader("Content-Range", contentRange(r, length));
+        }
+
+        String boundary = UUID.randomUUID().toString();
+        String contentType = response.getHeaders().get("Content-Type");
+        Buffer multipart = new Buffer();
+        for (long[] r : ranges) {
+            multipart.writeUtf8("\r\n--").writeUtf8(boundary).writeUtf8("\r\n");
+            if (contentType != null) {
+                multipart.writeUtf8("Content-Type: ").writeUtf8(contentType).writeUtf8("\r\n");
+            }
+            multipart.writeUtf8("Content-Range: ").writeUtf8(contentRange(r, length)).writeUtf8("\r\n\r\n");
+            multipart.write(slice(body, r), r[1] - r[0] + 1);
+        }
+        multipart.writeUtf8("\r\n--").writeUtf8(boundary).writeUtf8("--\r\n");
+        return result
+                .setBody(multipart)
+                .setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+    }
+
+    /**
+     * Returns the validator of {@code response} of the same kind as {@code ifRange}: its entity tag
+     * if {@code ifRange} is one, its last modification date otherwise. Weak tags never match.
+     */
+    private static String validator(MockResponse response, String ifRange) {
+        if (ifRange.startsWith("W/")) return null;
+        if (ifRange.startsWith("\"")) {
+            String etag = response.getHeaders().get("ETag");
+            return etag != null && !etag.startsWith("W/") ? etag : null;
+        }
+        return response.getHeaders().get("Last-Modified");
+    }
+
+    /**
+     * Returns the satisfiable ranges of {@code range} as inclusive first and last positions, an
+     * empty list if none is satisfiable, or null if the header is malformed.
+     */
+    static List<long[]> parse(String range, long length) {
+        String value = range.trim();
+        if (!value.toLowerCase(Locale.US).startsWith("bytes=")) return null;
+        List<long[]> result = new ArrayList<>();
+        for (String spec : value.substring(6).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0) continue;
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = length - 1;
+                    if (dash != spec.length() - 1) {
+                        long lastPosition = Long.parseLong(spec.substring(dash + 1));
+                        if (lastPosition < first) return null;
+                        last = Math.min(lastPosition, last);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < 0) return null;
+            if (first < length && first <= last) result.add(new long[]{first, last});
+        }
+        return result;
+    }
+
+    private static Buffer slice(Buffer body, long[] range) {
+        Buffer result = new Buffer();
+        body.copyTo(result, range[0], range[1] - range[0] + 1);
+        return result;
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.DeflaterSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Negotiates and applies the content codings the mock web server can compress response bodies
+ * with.
+ */
+final class ContentEncoding {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * Returns the preferred coding of {@code acceptEncoding} among those supported, or null to send
+     * the body as is. Ties go to gzip.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        float gzipQuality = 0f;
+        float deflateQuality = 0f;
+        float wildcardQuality = -1f;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.US);
+            float quality = 1f;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0f;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzipQuality = quality;
+            } else if (coding.equals(DEFLATE)) {
+                deflateQuality = quality;
+            } else if (coding.equals("*")) {
+                wildcardQuality = quality;
+            }
+        }
+        if (wildcardQuality >= 0f) {
+            if (!acceptEncoding.toLowerCase(Locale.US).contains(GZIP)) gzipQuality = wildcardQuality;
+            if (!acceptEncoding.toLowerCase(Locale.US).contains(DEFLATE)) deflateQuality = wildcardQuality;
+        }
+        if (gzipQuality <= 0f && deflateQuality <= 0f) return null;
+        return gzipQuality >= deflateQuality ? GZIP : DEFLATE;
+    }
+
+    /**
+     * Returns {@code body} compressed with {@code coding}.
+     */
+    static Buffer encode(Buffer body, String coding) {
+        Buffer result = new Buffer();
+        try (BufferedSink sink = Okio.buffer(GZIP.equals(coding)
+                ? new GzipSink(result)
+                : new DeflaterSink(result, new Deflater()))) {
+            sink.write(body.clone(), body.size());
+        } catch (IOException e) {
+            throw new AssertionError(e); // Buffers don't throw.
+        }
+        return result;
+    }
+}
@@ -15,6 +15,9 @@
  */
 package fr.devmind.mockwebserver;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Handler for mock server requests.
  */
@@ -25,11 +28,24 @@ public abstract class Dispatcher {
      */
     public abstract MockResponse dispatch(RecordedRequest request) throws InterruptedException;
 
+    /**
+     * Returns a stage completed with the response to {@code request}. The server doesn't hold a
+     * thread for a request while its stage is pending. The default implementation calls {@link
+     * #dispatch} and so blocks the calling thread: override it, or extend {@link AsyncDispatcher},
+     * to answer requests later.
+     */
+    public CompletionStage<MockResponse> dispatchAsync(RecordedRequest request) throws InterruptedException {
+        return CompletableFuture.completedFuture(dispatch(request));
+    }
+
     /**
      * Returns an early guess of the next response, used for policy on how an incoming request should
      * be received. The default implementation returns an empty response. Mischievous implementations
      * can return other values to test HTTP edge cases, such as unhappy socket policies or throttled
      * request bodies.
+     *
+     * <p>The server peeks once per connection, and once per request or stream: expensive
+     * implementations don't cost more as the request is read.
      */
     public MockResponse peek() {
         return new MockResponse().setSocketPolicy(SocketPolicy.KEEP_OPEN);
@@ -0,0 +1,248 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stream of <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html">server-sent
+ * events</a>, served with {@link MockResponse#setEventStream}. Events come from a script, each one
+ * at a given delay after the response headers, and from {@link #send producers} while the
+ * response is being served. Each event is flushed as soon as it is written.
+ *
+ * <p>The stream ends once its script has played, unless it is {@link #keepOpen kept open}: then it
+ * ends when {@link #complete} is called, or when the server shuts down. An event stream serves one
+ * response at a time.
+ */
+public final class EventStream {
+    private static final ByteString HEARTBEAT = ByteString.encodeUtf8(":\n\n");
+    /** How long to wait for an event before checking that the socket is still open. */
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** Queued by {@link #cancel} to end the stream being served right away. */
+    private static final QueuedEvent CANCEL = new QueuedEvent(null, 0);
+
+    private final List<ScriptedEvent> script = new ArrayList<>();
+    private final BlockingQueue<QueuedEvent> queue = new LinkedBlockingQueue<>();
+    private long heartbeatIntervalNanos;
+    private long retryMillis = -1;
+    private boolean keepOpen;
+    private final LatencyStats deliveryStats = new LatencyStats();
+
+    /**
+     * Adds an event with {@code data} to the script, to be sent {@code delay} after the response
+     * headers.
+     */
+    public EventStream addEvent(long delay, TimeUnit unit, String data) {
+        return addEvent(delay, unit, null, null, data);
+    }
+
+    /**
+     * Adds an event to the script, to be sent {@code delay} after the response headers. {@code
+     * type} and {@code id} may be null.
+     */
+    public EventStream addEvent(long delay, TimeUnit unit, String type, String id, String data) {
+        if (delay < 0) throw new IllegalArgumentException("delay < 0");
+        script.add(new ScriptedEvent(unit.toNanos(delay), encode(type, id, data)));
+        Collections.sort(script);
+        return this;
+    }
+
+    /**
+     * Sends a comment line every {@code interval} the stream is idle, so that clients and proxies
+     * don't time it out.
+     */
+    public EventStream setHeartbeatInterval(long interval, TimeUnit unit) {
+        if (interval < 0) throw new IllegalArgumentException("interval < 0");
+        this.heartbeatIntervalNanos = unit.toNanos(interval);
+        return this;
+    }
+
+    /**
+     * Sets the reconnection time sent to clients at the start of the stream.
+     */
+    public EventStream setRetry(long retry, TimeUnit unit) {
+        this.retryMillis = unit.toMillis(retry);
+        return this;
+    }
+
+    /**
+     * Keeps the stream open once its script has played, until {@link #complete} is called.
+     */
+    public EventStream keepOpen() {
+        this.keepOpen = true;
+        return this;
+    }
+
+    /**
+     * Sends an event with {@code data} on the stream being served, or on the next one.
+     */
+    public void send(String data) {
+        send(null, null, data);
+    }
+
+    /**
+     * Sends an event on the stream being served, or on the next one. {@code type} and {@code id}
+     * may be null.
+     */
+    public void send(String type, String id, String data) {
+        queue.add(new QueuedEvent(encode(type, id, data), System.nanoTime()));
+    }
+
+    /**
+     * Ends a stream that is {@link #keepOpen kept open} once the events sent so far are written.
+     */
+    public void complete() {
+        queue.add(new QueuedEvent(null, System.nanoTime()));
+    }
+
+    /**
+     * Ends the stream being served without writing anything more, like when the server shuts down.
+     */
+    void cancel() {
+        queue.add(CANCEL);
+    }
+
+    /**
+     * Returns how long events sent by producers waited before being flushed to the client.
+     */
+    public LatencyStats getDeliveryStats() {
+        return deliveryStats;
+    }
+
+    /**
+     * Writes the stream to {@code sink}, each event in its own chunk if {@code chunked}. Returns
+     * early, without ending the stream, if it is {@linkplain #cancel cancelled} or {@code socket}
+     * is closed.
+     */
+    void writeTo(Socket socket, BufferedSink sink, boolean chunked) throws IOException {
+        queue.remove(CANCEL); // Left over if a previous response ended as it was cancelled.
+        long startNanos = System.nanoTime();
+        long lastWriteNanos = startNanos;
+        if (retryMillis != -1) {
+            write(sink, chunked, ByteString.encodeUtf8("retry: " + retryMillis + "\n\n"));
+        }
+
+        int scriptIndex = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (scriptIndex < script.size()
+                    && script.get(scriptIndex).delayNanos <= now - startNanos) {
+                write(sink, chunked, script.get(scriptIndex++).bytes);
+                lastWriteNanos = System.nanoTime();
+                continue;
+            }
+            if (scriptIndex == script.size() && !keepOpen && queue.isEmpty()) break;
+
+            long waitNanos = MAX_WAIT_NANOS;
+            if (scriptIndex < script.size()) {
+                waitNanos = Math.min(waitNanos, script.get(scriptIndex).delayNanos - (now - startNanos));
+            }
+            if (heartbeatIntervalNanos > 0) {
+                long heartbeatNanos = lastWriteNanos + heartbeatIntervalNanos - now;
+                if (heartbeatNanos <= 0) {
+                    write(sink, chunked, HEARTBEAT);
+                    lastWriteNanos = System.nanoTime();
+                    continue;
+                }
+                waitNanos = Math.min(waitNanos, heartbeatNanos);
+            }
+
+            QueuedEvent event;
+            try {
+                event = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (event == CANCEL) return;
+            if (event == null) {
+                if (socket.isClosed()) return;
+                continue;
+            }
+            if (event.bytes == null) {
+                if (keepOpen) break;
+                continue; // complete() only ends streams that are kept open.
+            }
+            write(sink, chunked, event.bytes);
+            lastWriteNanos = System.nanoTime();
+            deliveryStats.record(lastWriteNanos - event.sentAtNanos);
+        }
+
+        if (chunked) {
+            sink.writeUtf8("0\r\n\r\n"); // Last chunk + empty trailer + CRLF.
+        }
+        sink.flush();
+    }
+
+    private static void write(BufferedSink sink, boolean chunked, ByteString bytes) throws IOException {
+        if (chunked) {
+            sink.writeHexadecimalUnsignedLong(bytes.size());
+            sink.writeUtf8("\r\n");
+            sink.write(bytes);
+            sink.writeUtf8("\r\n");
+        } else {
+            sink.write(bytes);
+        }
+        sink.flush();
+    }
+
+    private static ByteString encode(String type, String id, String data) {
+        if (data == null) throw new NullPointerException("data == null");
+        Buffer result = new Buffer();
+        if (type != null) result.writeUtf8("event: ").writeUtf8(type).writeByte('\n');
+        if (id != null) result.writeUtf8("id: ").writeUtf8(id).writeByte('\n');
+        for (String line : data.split("\r\n|\r|\n", -1)) {
+            result.writeUtf8("data: ").writeUtf8(line).writeByte('\n');
+        }
+        result.writeByte('\n');
+        return result.readByteString();
+    }
+
+    private static final class ScriptedEvent implements Comparable<ScriptedEvent> {
+        final long delayNanos;
+        final ByteString bytes;
+
+        ScriptedEvent(long delayNanos, ByteString bytes) {
+            this.delayNanos = delayNanos;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int compareTo(ScriptedEvent other) {
+            return Long.compare(delayNanos, other.delayNanos);
+        }
+    }
+
+    private static final class QueuedEvent {
+        /** The encoded event, or null to complete the stream. */
+        final ByteString bytes;
+        final long sentAtNanos;
+
+        QueuedEvent(ByteString bytes, long sentAtNanos) {
+            this.bytes = bytes;
+            this.sentAtNanos = sentAtNanos;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okhttp3.internal.http2.Settings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the mock web server behaves as an HTTP/2 peer on each of its connections. Use this to test
+ * clients against constrained peers: small flow-control windows, slow window updates, few
+ * concurrent streams or small frames.
+ *
+ * <p>The server sends WINDOW_UPDATE frames as it consumes request bodies, so {@link
+ * #throttleRequestBodies throttling request bodies} is what paces window updates.
+ */
+public final class Http2Profile {
+    // Setting identifiers from https://tools.ietf.org/html/rfc7540#section-6.5.2.
+    private static final int MAX_CONCURRENT_STREAMS = 4;
+    private static final int INITIAL_WINDOW_SIZE = 7;
+
+    private final Settings initialSettings = new Settings();
+    private boolean hasInitialSettings;
+    private final List<SettingsChange> settingsChanges = new ArrayList<>();
+    private final MockResponse requestBodyThrottle = new MockResponse();
+    private boolean requestBodiesThrottled;
+    private long responseFrameSize = Long.MAX_VALUE;
+
+    /**
+     * Advertises {@code windowSize} as the initial flow-control window of the streams the client
+     * opens. The client stops sending request body bytes once this many are unacknowledged.
+     */
+    public Http2Profile setInitialWindowSize(int windowSize) {
+        initialSettings.set(INITIAL_WINDOW_SIZE, windowSize);
+        hasInitialSettings = true;
+        return this;
+    }
+
+    /**
+     * Advertises how many streams the client may have open concurrently.
+     */
+    public Http2Profile setMaxConcurrentStreams(int maxConcurrentStreams) {
+        initialSettings.set(MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+        hasInitialSettings = true;
+        return this;
+    }
+
+    /**
+     * Sends {@code settings} to the client {@code delay} after the connection is established. Use
+     * this to shrink or grow windows and stream limits over the lifetime of a connection.
+     */
+    public Http2Profile addSettingsChange(long delay, TimeUnit unit, Settings settings) {
+        settingsChanges.add(new SettingsChange(unit.toMillis(delay), settings));
+        Collections.sort(settingsChanges);
+        return this;
+    }
+
+    /**
+     * Reads request bodies {@code bytesPerPeriod} bytes at a time and sleeps for the given period
+     * between reads, delaying the WINDOW_UPDATE frames that let the client send more. This applies
+     * to responses that don't {@linkplain MockResponse#throttleBody throttle} bodies themselves.
+     */
+    public Http2Profile throttleRequestBodies(long bytesPerPeriod, long period, TimeUnit unit) {
+        requestBodyThrottle.throttleBody(bytesPerPeriod, period, unit);
+        requestBodiesThrottled = true;
+        return this;
+    }
+
+    /**
+     * Writes response bodies in DATA frames of at most {@code frameSize} bytes, flushing each one.
+     * Frames are never larger than the client's SETTINGS_MAX_FRAME_SIZE, but may be as small as
+     * one byte.
+     */
+    public Http2Profile setResponseFrameSize(int frameSize) {
+        if (frameSize < 1) throw new IllegalArgumentException("frameSize < 1");
+        this.responseFrameSize = frameSize;
+        return this;
+    }
+
+    /**
+     * Returns the settings to send when the connection starts, or null to keep OkHttp's defaults.
+     */
+    Settings getInitialSettings() {
+        return hasInitialSettings ? initialSettings : null;
+    }
+
+    List<SettingsChange> getSettingsChanges() {
+        return settingsChanges;
+    }
+
+    /**
+     * Returns the policy to read request bodies with, or {@code peeked} if bodies aren't throttled.
+     * Throttled bodies keep the socket policy of {@code peeked}, like {@link
+     * SocketPolicy#DISCONNECT_DURING_REQUEST_BODY}.
+     */
+    MockResponse requestBodyPolicy(MockResponse peeked) {
+        if (!requestBodiesThrottled || peeked.getThrottleBytesPerPeriod() != Long.MAX_VALUE) return peeked;
+        return requestBodyThrottle.clone().setSocketPolicy(peeked.getSocketPolicy());
+    }
+
+    long getResponseFrameSize() {
+        return responseFrameSize;
+    }
+
+    static final class SettingsChange implements Comparable<SettingsChange> {
+        final long delayMillis;
+        final Settings settings;
+
+        SettingsChange(long delayMillis, Settings settings) {
+            this.delayMillis = delayMillis;
+            this.settings = settings;
+        }
+
+        @Override
+        public int compareTo(SettingsChange other) {
+            return Long.compare(delayMillis, other.delayMillis);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-wide limits on how long a connection is reused, like the {@code keepalive_requests} and
+ * {@code keepalive_timeout} settings of real servers. When a limit is reached an HTTP/1.1
+ * connection is closed after the current response, and an HTTP/2 connection receives a <a
+ * href="https://tools.ietf.org/html/rfc7540#section-6.8">GOAWAY frame</a> so the client stops
+ * opening streams on it.
+ *
+ * <p>Per-response {@link SocketPolicy socket policies} still apply on top of these limits. Idle
+ * connections are reaped with {@link SocketOptions#setIdleTimeout}.
+ */
+public final class KeepAlivePolicy {
+    private int maxRequests = 0;
+    private long maxAgeNanos = 0;
+    private boolean signalClose = true;
+
+    /**
+     * Closes connections after they served {@code maxRequests} requests, or HTTP/2 streams. Use 0
+     * for no limit, which is the default.
+     */
+    public KeepAlivePolicy setMaxRequests(int maxRequests) {
+        if (maxRequests < 0) throw new IllegalArgumentException("maxRequests < 0");
+        this.maxRequests = maxRequests;
+        return this;
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Closes connections once they are older than {@code maxAge}. HTTP/1.1 connections check their
+     * age as each response is written, so the response that crosses the limit is the last one sent.
+     * HTTP/2 connections check it as each stream opens, and let that stream complete. Use 0 for no
+     * limit, which is the default.
+     */
+    public KeepAlivePolicy setMaxAge(long maxAge, TimeUnit unit) {
+        if (maxAge < 0) throw new IllegalArgumentException("maxAge < 0");
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        return this;
+    }
+
+    public long getMaxAge(TimeUnit unit) {
+        return unit.convert(maxAgeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets whether the last response of an HTTP/1.1 connection carries a {@code Connection: close}
+     * header. When disabled the connection is dropped without warning, like a server that doesn't
+     * announce it. Defaults to true.
+     */
+    public KeepAlivePolicy setSignalClose(boolean signalClose) {
+        this.signalClose = signalClose;
+        return this;
+    }
+
+    public boolean getSignalClose() {
+        return signalClose;
+    }
+
+    /**
+     * Returns true if a connection opened at {@code connectedAtNanos} must not serve anything after
+     * its {@code requestCount}th request.
+     */
+    boolean isExhausted(int requestCount, long connectedAtNanos) {
+        if (maxRequests != 0 && requestCount >= maxRequests) return true;
+        return maxAgeNanos != 0 && System.nanoTime() - connectedAtNanos >= maxAgeNanos;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count, total, minimum and maximum of durations measured by the mock web server. Instances are
+ * live: they keep being updated while the server runs.
+ */
+public final class LatencyStats {
+    private long count;
+    private long totalNanos;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+
+    synchronized void record(long nanos) {
+        count++;
+        totalNanos += nanos;
+        minNanos = Math.min(minNanos, nanos);
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotal(TimeUnit unit) {
+        return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the shortest duration recorded, or 0 if none was.
+     */
+    public synchronized long getMin(TimeUnit unit) {
+        return count == 0 ? 0 : unit.convert(minNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized long getMax(TimeUnit unit) {
+        return unit.convert(maxNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the mean duration, or 0 if nothing was recorded.
+     */
+    public synchronized long getAverage(TimeUnit unit) {
+        return count == 0 ? 0 : unit.convert(totalNanos / count, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LatencyStats[count=" + count
+                + ", avg=" + getAverage(TimeUnit.MICROSECONDS) + "us"
+                + ", max=" + getMax(TimeUnit.MICROSECONDS) + "us]";
+    }
+}
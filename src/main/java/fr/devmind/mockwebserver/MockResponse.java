@@ -18,11 +18,20 @@ package fr.devmind.mockwebserver;
 import okhttp3.Headers;
 import okhttp3.WebSocketListener;
 import okhttp3.internal.Internal;
+import okhttp3.internal.http2.Header;
 import okhttp3.internal.http2.Settings;
 import okio.Buffer;
+import okio.ByteString;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -31,10 +40,19 @@ import java.util.concurrent.TimeUnit;
 public final class MockResponse implements Cloneable {
     private static final String CHUNKED_BODY_HEADER = "Transfer-encoding: chunked";
 
+    /** Connection-specific headers, from https://tools.ietf.org/html/rfc7540#section-8.1.2.2. */
+    private static final Set<String> HTTP_2_SKIPPED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
     private String status;
     private Headers.Builder headers = new Headers.Builder();
 
     private Buffer body;
+    private boolean compressible;
+    private boolean acceptRanges;
+    private boolean evaluatePreconditions;
+    /** Compressed variants of {@code body} by coding, shared by clones. */
+    private Map<String, Buffer> encodedBodies = new ConcurrentHashMap<>();
 
     private long throttleBytesPerPeriod = Long.MAX_VALUE;
     private long throttlePeriodAmount = 1;
@@ -52,6 +70,10 @@ public final class MockResponse implements Cloneable {
     private List<PushPromise> promises = new ArrayList<>();
     private Settings settings;
     private WebSocketListener webSocketListener;
+    private EventStream eventStream;
+
+    /** The headers of this response once it is frozen, null while it can still change. */
+    private Headers frozenHeaders;
 
     /**
      * Creates a new mock response with an empty body.
@@ -61,12 +83,17 @@ public final class MockResponse implements Cloneable {
         setHeader("Content-Length", 0);
     }
 
+    /**
+     * Returns a copy of this response that can be changed, even if this response is {@linkplain
+     * #freeze() frozen}. The copy shares the body of this response.
+     */
     @Override
     public MockResponse clone() {
         try {
             MockResponse result = (MockResponse) super.clone();
-            result.headers = headers.build().newBuilder();
+            result.headers = getHeaders().newBuilder();
             result.promises = new ArrayList<>(promises);
+            result.frozenHeaders = null;
             return result;
         }
         catch (CloneNotSupportedException e) {
@@ -74,6 +101,34 @@ public final class MockResponse implements Cloneable {
         }
     }
 
+    /**
+     * Returns an immutable snapshot of this response. A frozen response is safe to share between
+     * threads and requests: it is {@linkplain MockWebServer#enqueue enqueued} and served without
+     * being copied, so enqueuing it many times costs a reference each time. Its setters throw
+     * {@link IllegalStateException}; use {@link #clone()} to derive a response that can change.
+     *
+     * <p>This response is left unchanged and can still be changed without affecting the snapshot.
+     * Freezing a frozen response returns it.
+     */
+    public MockResponse freeze() {
+        if (isFrozen()) return this;
+        MockResponse result = clone();
+        result.promises = Collections.unmodifiableList(result.promises);
+        result.frozenHeaders = result.headers.build();
+        return result;
+    }
+
+    /**
+     * Returns true if this response was returned by {@link #freeze()} and can't change.
+     */
+    public boolean isFrozen() {
+        return frozenHeaders != null;
+    }
+
+    private void checkNotFrozen() {
+        if (isFrozen()) throw new IllegalStateException("frozen response can't change: " + status);
+    }
+
     /**
      * Returns the HTTP response line, such as "HTTP/1.1 200 OK".
      */
@@ -82,6 +137,7 @@ public final class MockResponse implements Cloneable {
     }
 
     public MockResponse setResponseCode(int code) {
+        checkNotFrozen();
         String reason = "Mock Response";
         if (code >= 100 && code < 200) {
             reason = "Informational";
@@ -102,6 +158,7 @@ public final class MockResponse implements Cloneable {
     }
 
     public MockResponse setStatus(String status) {
+        checkNotFrozen();
         this.status = status;
         return this;
     }
@@ -110,7 +167,7 @@ public final class MockResponse implements Cloneable {
      * Returns the HTTP headers, such as "Content-Length: 0".
      */
     public Headers getHeaders() {
-        return headers.build();
+        return frozenHeaders != null ? frozenHeaders : headers.build();
     }
 
     /**
@@ -118,6 +175,7 @@ public final class MockResponse implements Cloneable {
      * were added by default.
      */
     public MockResponse clearHeaders() {
+        checkNotFrozen();
         headers = new Headers.Builder();
         return this;
     }
@@ -127,6 +185,7 @@ public final class MockResponse implements Cloneable {
      * name followed by a colon and a value.
      */
     public MockResponse addHeader(String header) {
+        checkNotFrozen();
         headers.add(header);
         return this;
     }
@@ -136,6 +195,7 @@ public final class MockResponse implements Cloneable {
      * same name.
      */
     public MockResponse addHeader(String name, Object value) {
+        checkNotFrozen();
         headers.add(name, String.valueOf(value));
         return this;
     }
@@ -146,6 +206,7 @@ public final class MockResponse implements Cloneable {
      * value.
      */
     public MockResponse addHeaderLenient(String name, Object value) {
+        checkNotFrozen();
         Internal.instance.addLenient(headers, name, String.valueOf(value));
         return this;
     }
@@ -154,6 +215,7 @@ public final class MockResponse implements Cloneable {
      * Removes all headers named {@code name}, then adds a new header with the name and value.
      */
     public MockResponse setHeader(String name, Object value) {
+        checkNotFrozen();
         removeHeader(name);
         return addHeader(name, value);
     }
@@ -162,6 +224,7 @@ public final class MockResponse implements Cloneable {
      * Replaces all headers with those specified in {@code headers}.
      */
     public MockResponse setHeaders(Headers headers) {
+        checkNotFrozen();
         this.headers = headers.newBuilder();
         return this;
     }
@@ -170,6 +233,7 @@ public final class MockResponse implements Cloneable {
      * Removes all headers named {@code name}.
      */
     public MockResponse removeHeader(String name) {
+        checkNotFrozen();
         headers.removeAll(name);
         return this;
     }
@@ -181,9 +245,18 @@ public final class MockResponse implements Cloneable {
         return body != null ? body.clone() : null;
     }
 
+    /**
+     * Returns the body without copying it, or null. Callers must not change it.
+     */
+    Buffer getBodyBuffer() {
+        return body;
+    }
+
     public MockResponse setBody(Buffer body) {
+        checkNotFrozen();
         setHeader("Content-Length", body.size());
         this.body = body.clone(); // Defensive copy.
+        this.encodedBodies = new ConcurrentHashMap<>();
         return this;
     }
 
@@ -191,6 +264,7 @@ public final class MockResponse implements Cloneable {
      * Sets the response body to the UTF-8 encoded bytes of {@code body}.
      */
     public MockResponse setBody(String body) {
+        checkNotFrozen();
         return setBody(new Buffer().writeUtf8(body));
     }
 
@@ -198,6 +272,7 @@ public final class MockResponse implements Cloneable {
      * Sets the response body to {@code body}, chunked every {@code maxChunkSize} bytes.
      */
     public MockResponse setChunkedBody(Buffer body, int maxChunkSize) {
+        checkNotFrozen();
         removeHeader("Content-Length");
         headers.add(CHUNKED_BODY_HEADER);
 
@@ -212,6 +287,7 @@ public final class MockResponse implements Cloneable {
         bytesOut.writeUtf8("0\r\n\r\n"); // Last chunk + empty trailer + CRLF.
 
         this.body = bytesOut;
+        this.encodedBodies = new ConcurrentHashMap<>();
         return this;
     }
 
@@ -220,14 +296,133 @@ public final class MockResponse implements Cloneable {
      * maxChunkSize} bytes.
      */
     public MockResponse setChunkedBody(String body, int maxChunkSize) {
+        checkNotFrozen();
         return setChunkedBody(new Buffer().writeUtf8(body), maxChunkSize);
     }
 
+    /**
+     * Sets whether the body is compressed for clients that accept it, according to their {@code
+     * Accept-Encoding} header. Gzip and deflate are supported. Each compressed variant is computed
+     * the first time it is served and cached with the body, including by clones of this response.
+     * Chunked bodies and bodies that already have a {@code Content-Encoding} are sent as is.
+     *
+     * <p>Adds {@code Accept-Encoding} to the {@code Vary} header, or removes it when the body is no
+     * longer compressible, keeping the other fields the response varies on.
+     */
+    public MockResponse setCompressible(boolean compressible) {
+        checkNotFrozen();
+        this.compressible = compressible;
+        List<String> vary = new ArrayList<>();
+        for (String value : getHeaders().values("Vary")) {
+            for (String field : value.split(",")) {
+                field = field.trim();
+                if (!field.isEmpty() && !"Accept-Encoding".equalsIgnoreCase(field)) vary.add(field);
+            }
+        }
+        if (compressible && !vary.contains("*")) vary.add("Accept-Encoding");
+        removeHeader("Vary");
+        if (!vary.isEmpty()) addHeader("Vary", String.join(", ", vary));
+        return this;
+    }
+
+    public boolean isCompressible() {
+        return compressible;
+    }
+
+    /**
+     * Sets whether clients may ask for parts of the body with {@code Range} requests, honoring
+     * {@code If-Range}. Partial responses are sent uncompressed.
+     */
+    public MockResponse setAcceptRanges(boolean acceptRanges) {
+        checkNotFrozen();
+        this.acceptRanges = acceptRanges;
+        if (acceptRanges) {
+            setHeader("Accept-Ranges", "bytes");
+        } else {
+            removeHeader("Accept-Ranges");
+        }
+        return this;
+    }
+
+    public boolean getAcceptRanges() {
+        return acceptRanges;
+    }
+
+    /**
+     * Sets a strong {@code ETag} header computed from the current body. The body is hashed once,
+     * here: call this after setting the body.
+     */
+    public MockResponse setETag() {
+        checkNotFrozen();
+        ByteString hash = body != null ? body.sha256() : ByteString.EMPTY.sha256();
+        return setHeader("ETag", "\"" + hash.substring(0, 16).hex() + "\"");
+    }
+
+    /**
+     * Sets the {@code Cache-Control} header to {@code preset}.
+     */
+    public MockResponse setCacheControl(CachePreset preset) {
+        checkNotFrozen();
+        return setHeader("Cache-Control", preset.value);
+    }
+
+    /**
+     * Sets whether the server answers conditional requests: a request whose {@code If-None-Match}
+     * matches this response's {@code ETag}, or whose {@code If-Modified-Since} isn't older than its
+     * {@code Last-Modified} header, gets a {@code 304 Not Modified} response without body.
+     */
+    public MockResponse setEvaluatePreconditions(boolean evaluatePreconditions) {
+        checkNotFrozen();
+        this.evaluatePreconditions = evaluatePreconditions;
+        return this;
+    }
+
+    public boolean getEvaluatePreconditions() {
+        return evaluatePreconditions;
+    }
+
+    /**
+     * Returns a {@code 304 Not Modified} response with the headers of this response and no body.
+     */
+    MockResponse notModified() {
+        MockResponse result = clone();
+        result.setStatus("HTTP/1.1 304 Not Modified");
+        result.removeHeader("Content-Length");
+        result.removeHeader("Transfer-encoding");
+        result.body = null;
+        result.encodedBodies = new ConcurrentHashMap<>();
+        result.eventStream = null;
+        return result;
+    }
+
+    /**
+     * Returns this response with its body compressed with the preferred coding of {@code
+     * acceptEncoding}, or this response if it shouldn't be compressed.
+     */
+    MockResponse encodeFor(String acceptEncoding) {
+        if (!compressible || body == null || headers.get("Content-Encoding") != null
+                || headers.get("Transfer-encoding") != null) {
+            return this;
+        }
+        String coding = ContentEncoding.negotiate(acceptEncoding);
+        if (coding == null) return this;
+
+        Buffer encodedBody = encodedBodies.computeIfAbsent(coding, c -> ContentEncoding.encode(body, c));
+        MockResponse result = clone();
+        result.body = encodedBody;
+        result.encodedBodies = new ConcurrentHashMap<>();
+        result.compressible = false;
+        result.setHeader("Content-Encoding", coding);
+        result.setHeader("Content-Length", encodedBody.size());
+        return result;
+    }
+
     public SocketPolicy getSocketPolicy() {
         return socketPolicy;
     }
 
     public MockResponse setSocketPolicy(SocketPolicy socketPolicy) {
+        checkNotFrozen();
         this.socketPolicy = socketPolicy;
         return this;
     }
@@ -242,6 +437,7 @@ public final class MockResponse implements Cloneable {
      * SocketPolicy#RESET_STREAM_AT_START}.
      */
     public MockResponse setHttp2ErrorCode(int http2ErrorCode) {
+        checkNotFrozen();
         this.http2ErrorCode = http2ErrorCode;
         return this;
     }
@@ -251,6 +447,7 @@ public final class MockResponse implements Cloneable {
      * series of {@code bytesPerPeriod} bytes are transferred. Use this to simulate network behavior.
      */
     public MockResponse throttleBody(long bytesPerPeriod, long period, TimeUnit unit) {
+        checkNotFrozen();
         this.throttleBytesPerPeriod = bytesPerPeriod;
         this.throttlePeriodAmount = period;
         this.throttlePeriodUnit = unit;
@@ -270,6 +467,7 @@ public final class MockResponse implements Cloneable {
      * only; response headers are not affected.
      */
     public MockResponse setBodyDelay(long delay, TimeUnit unit) {
+        checkNotFrozen();
         bodyDelayAmount = delay;
         bodyDelayUnit = unit;
         return this;
@@ -280,6 +478,7 @@ public final class MockResponse implements Cloneable {
     }
 
     public MockResponse setHeadersDelay(long delay, TimeUnit unit) {
+        checkNotFrozen();
         headersDelayAmount = delay;
         headersDelayUnit = unit;
         return this;
@@ -294,6 +493,7 @@ public final class MockResponse implements Cloneable {
      * okhttp3.Protocol#HTTP_2}, this attaches a pushed stream to this response.
      */
     public MockResponse withPush(PushPromise promise) {
+        checkNotFrozen();
         this.promises.add(promise);
         return this;
     }
@@ -310,6 +510,7 @@ public final class MockResponse implements Cloneable {
      * okhttp3.Protocol#HTTP_2 HTTP/2}, this pushes {@code settings} before writing the response.
      */
     public MockResponse withSettings(Settings settings) {
+        checkNotFrozen();
         this.settings = settings;
         return this;
     }
@@ -323,10 +524,12 @@ public final class MockResponse implements Cloneable {
      * set status or body.
      */
     public MockResponse withWebSocketUpgrade(WebSocketListener listener) {
+        checkNotFrozen();
         setStatus("HTTP/1.1 101 Switching Protocols");
         setHeader("Connection", "Upgrade");
         setHeader("Upgrade", "websocket");
         body = null;
+        encodedBodies = new ConcurrentHashMap<>();
         webSocketListener = listener;
         return this;
     }
@@ -335,8 +538,73 @@ public final class MockResponse implements Cloneable {
         return webSocketListener;
     }
 
+    /**
+     * Streams the events of {@code eventStream} as the response body, with the {@code
+     * text/event-stream} content type. This will overwrite any previously set body. Over HTTP/1.1
+     * each event is sent in its own chunk.
+     */
+    public MockResponse setEventStream(EventStream eventStream) {
+        checkNotFrozen();
+        removeHeader("Content-Length");
+        setHeader("Content-Type", "text/event-stream");
+        setHeader("Cache-Control", "no-cache");
+        setHeader("Transfer-encoding", "chunked");
+        body = null;
+        encodedBodies = new ConcurrentHashMap<>();
+        this.eventStream = eventStream;
+        return this;
+    }
+
+    public EventStream getEventStream() {
+        return eventStream;
+    }
+
+    /**
+     * Returns the status and headers of this response as an HTTP/2 header block.
+     */
+    List<Header> http2Headers() {
+        String[] statusParts = status.split(" ", 3);
+        if (statusParts.length < 2) {
+            throw new AssertionError("Unexpected status: " + status);
+        }
+        List<Header> result = new ArrayList<>();
+        // TODO: constants for well-known header names.
+        result.add(new Header(Header.RESPONSE_STATUS, statusParts[1]));
+        Headers headers = getHeaders();
+        for (int i = 0, size = headers.size(); i < size; i++) {
+            String name = headers.name(i);
+            // HTTP/2 frames the body itself and forbids connection-specific headers.
+            if (HTTP_2_SKIPPED_HEADERS.contains(name.toLowerCase(Locale.US))) continue;
+            result.add(new Header(name, headers.value(i)));
+        }
+        return result;
+    }
+
     @Override
     public String toString() {
         return status;
     }
+
+    /**
+     * Common {@code Cache-Control} directives.
+     */
+    public enum CachePreset {
+        /** Caches must not store the response. */
+        NO_STORE("no-store"),
+
+        /** Caches may store the response but must revalidate it before each use. */
+        NO_CACHE("no-cache"),
+
+        /** The response is fresh for a minute. */
+        SHORT_LIVED("max-age=60"),
+
+        /** The response never changes, as is the case of versioned assets. */
+        IMMUTABLE("public, max-age=31536000, immutable");
+
+        final String value;
+
+        CachePreset(String value) {
+            this.value = value;
+        }
+    }
 }
@@ -31,8 +31,10 @@ import okio.*;
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.*;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
 import java.net.*;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
@@ -40,6 +42,8 @@ import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -74,18 +78,52 @@ public final class MockWebServer implements Closeable {
         }
     };
 
+    private static final ByteString HTTP2_CONNECTION_PREFACE =
+            ByteString.encodeUtf8("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
     private static final Logger logger = Logger.getLogger(MockWebServer.class.getName());
 
+    /**
+     * {@code StandardSocketOptions.SO_REUSEPORT}, or null on runtimes older than Java 9.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
     private final BlockingQueue<RecordedRequest> requestQueue = new LinkedBlockingQueue<>();
 
     private final Set<Socket> openClientSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
     private final Set<Http2Connection> openConnections = Collections.newSetFromMap(new ConcurrentHashMap<Http2Connection, Boolean>());
+    private final Set<StreamScheduler> streamSchedulers = Collections.newSetFromMap(new ConcurrentHashMap<StreamScheduler, Boolean>());
+    private final Set<EventStream> servingEventStreams = Collections.newSetFromMap(new ConcurrentHashMap<EventStream, Boolean>());
     private final AtomicInteger requestCount = new AtomicInteger();
     private long bodyLimit = Long.MAX_VALUE;
+    private boolean decodeRequestBodies;
+    private String requestBodyDigestAlgorithm;
+    private boolean parseMultipartBodies;
+    private File multipartSpoolDirectory;
+    private SocketOptions socketOptions = new SocketOptions();
+    private KeepAlivePolicy keepAlivePolicy = new KeepAlivePolicy();
+    private Http2Profile http2Profile = new Http2Profile();
+    private int maxConcurrentStreamDispatches = Integer.MAX_VALUE;
+    private final LatencyStats streamQueueStats = new LatencyStats();
+    private volatile boolean recordPushPromises = true;
+    private final AtomicLong pushCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong fullResponseCount = new AtomicLong();
     private ServerSocketFactory serverSocketFactory = ServerSocketFactory.getDefault();
     private ServerSocket serverSocket;
+    private final List<ServerSocket> acceptorSockets = new CopyOnWriteArrayList<>();
+    private int acceptorCount = 1;
+    private AtomicLongArray acceptedConnections = new AtomicLongArray(1);
     private SSLSocketFactory sslSocketFactory;
+    private SSLContext sslContext;
+    private TlsOptions tlsOptions = new TlsOptions();
+    /** Undoes what {@link #tlsOptions} changed outside of this server, null if nothing is applied. */
+    private Runnable tlsOptionsRestore;
+    private final LatencyStats fullHandshakeStats = new LatencyStats();
+    private final LatencyStats resumedHandshakeStats = new LatencyStats();
     private ExecutorService executor;
+    /** Sends the scheduled settings changes of {@link #http2Profile}. */
+    private ScheduledExecutorService settingsScheduler;
+    private ThreadFactory threadFactory = Util.threadFactory("MockWebServer", false);
     private boolean tunnelProxy;
     private Dispatcher dispatcher = new QueueDispatcher();
 
@@ -118,6 +156,60 @@ public final class MockWebServer implements Closeable {
         this.serverSocketFactory = serverSocketFactory;
     }
 
+    /**
+     * Sets the number of threads accepting incoming connections. With more than one acceptor each
+     * thread binds its own server socket with {@code SO_REUSEPORT} so that the kernel balances new
+     * connections across them. When the platform doesn't support {@code SO_REUSEPORT} the acceptors
+     * share a single server socket instead.
+     *
+     * @param acceptorCount the number of acceptor threads, at least 1. Defaults to 1.
+     */
+    public void setAcceptorCount(int acceptorCount) {
+        if (executor != null) {
+            throw new IllegalStateException("setAcceptorCount() must be called before start()");
+        }
+        if (acceptorCount < 1) {
+            throw new IllegalArgumentException("acceptorCount < 1: " + acceptorCount);
+        }
+        this.acceptorCount = acceptorCount;
+        this.acceptedConnections = new AtomicLongArray(acceptorCount);
+    }
+
+    /**
+     * Returns the number of connections accepted by each acceptor thread thus far, indexed by
+     * acceptor. Use this to check how evenly connections are spread when {@link #setAcceptorCount
+     * several acceptors} are running.
+     */
+    public long[] getAcceptedConnectionCounts() {
+        long[] result = new long[acceptedConnections.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = acceptedConnections.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the factory of the threads accepting connections, the threads serving them, the threads
+     * dispatching HTTP/2 streams when {@link #setMaxConcurrentStreamDispatches} is set, and the
+     * thread sending the settings changes of the {@link #setHttp2Profile HTTP/2 profile}. Each
+     * connection is served by a thread that blocks on socket I/O, including during TLS handshakes,
+     * so a factory of virtual threads on Java 21 and later serves thousands of concurrent HTTPS
+     * connections without thousands of platform threads.
+     *
+     * <p>Web sockets still use their own threads: those of OkHttp, of {@link WebSocketScenario}
+     * timers and of {@link WebSocketHub} writers.
+     *
+     * <p>Threads are renamed while they run, so the names given by the factory are only visible
+     * when they are idle.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        if (executor != null) {
+            throw new IllegalStateException("setThreadFactory() must be called before start()");
+        }
+        if (threadFactory == null) throw new NullPointerException("threadFactory == null");
+        this.threadFactory = threadFactory;
+    }
+
     /**
      * Returns a URL for connecting to this server.
      *
@@ -139,6 +231,137 @@ public final class MockWebServer implements Closeable {
         this.bodyLimit = maxBodyLength;
     }
 
+    /**
+     * Sets whether request bodies are inflated as they are received, according to their {@code
+     * Content-Encoding}, to measure and {@linkplain #setRequestBodyDigestAlgorithm digest} their
+     * decoded bytes. Gzip and deflate are supported. Recorded bodies keep their raw bytes; decoded
+     * bytes are discarded once inspected.
+     */
+    public void setDecodeRequestBodies(boolean decodeRequestBodies) {
+        this.decodeRequestBodies = decodeRequestBodies;
+    }
+
+    /**
+     * Sets the {@link java.security.MessageDigest} algorithm, like {@code SHA-256}, to digest
+     * request bodies with as they are received. Null disables digests, this is the default.
+     */
+    public void setRequestBodyDigestAlgorithm(String requestBodyDigestAlgorithm) {
+        this.requestBodyDigestAlgorithm = requestBodyDigestAlgorithm;
+    }
+
+    /**
+     * Sets whether multipart request bodies are split into {@linkplain RecordedRequest#getParts()
+     * parts} as they are received. Parts are {@linkplain #setRequestBodyDigestAlgorithm digested}
+     * and measured without being held in memory; combine this with a {@linkplain #setBodyLimit body
+     * limit} of 0 to receive uploads of any size.
+     */
+    public void setParseMultipartBodies(boolean parseMultipartBodies) {
+        this.parseMultipartBodies = parseMultipartBodies;
+    }
+
+    /**
+     * Sets the directory to write the content of each {@linkplain #setParseMultipartBodies parsed}
+     * part to, or null to discard it. This is null by default.
+     */
+    public void setMultipartSpoolDirectory(File multipartSpoolDirectory) {
+        this.multipartSpoolDirectory = multipartSpoolDirectory;
+    }
+
+    /**
+     * Sets the TCP options applied to the listening socket and to accepted connections. Options of
+     * the listening socket only take effect if this is called before {@link #start()}.
+     */
+    public void setSocketOptions(SocketOptions socketOptions) {
+        if (socketOptions == null) throw new NullPointerException("socketOptions == null");
+        this.socketOptions = socketOptions;
+    }
+
+    public SocketOptions getSocketOptions() {
+        return socketOptions;
+    }
+
+    /**
+     * Sets the limits on how many requests and for how long connections are reused.
+     */
+    public void setKeepAlivePolicy(KeepAlivePolicy keepAlivePolicy) {
+        if (keepAlivePolicy == null) throw new NullPointerException("keepAlivePolicy == null");
+        this.keepAlivePolicy = keepAlivePolicy;
+    }
+
+    public KeepAlivePolicy getKeepAlivePolicy() {
+        return keepAlivePolicy;
+    }
+
+    /**
+     * Sets how the server behaves as an HTTP/2 peer on each new connection: flow-control windows,
+     * stream limits and frame sizes, and how they change over time.
+     */
+    public void setHttp2Profile(Http2Profile http2Profile) {
+        if (http2Profile == null) throw new NullPointerException("http2Profile == null");
+        this.http2Profile = http2Profile;
+    }
+
+    public Http2Profile getHttp2Profile() {
+        return http2Profile;
+    }
+
+    /**
+     * Limits how many streams of each HTTP/2 connection are dispatched concurrently. Further streams
+     * wait for a thread, the most urgent first according to their {@code priority} header (RFC
+     * 9218), then in arrival order. By default each stream is dispatched as soon as it arrives, on
+     * its own thread.
+     */
+    public void setMaxConcurrentStreamDispatches(int maxConcurrentStreamDispatches) {
+        if (maxConcurrentStreamDispatches < 1) {
+            throw new IllegalArgumentException("maxConcurrentStreamDispatches < 1");
+        }
+        this.maxConcurrentStreamDispatches = maxConcurrentStreamDispatches;
+    }
+
+    public int getMaxConcurrentStreamDispatches() {
+        return maxConcurrentStreamDispatches;
+    }
+
+    /**
+     * Returns how long HTTP/2 streams waited for a thread when {@link
+     * #setMaxConcurrentStreamDispatches concurrent dispatches are limited}.
+     */
+    public LatencyStats getStreamQueueStats() {
+        return streamQueueStats;
+    }
+
+    /**
+     * Sets whether each HTTP/2 push is recorded as a request, available from {@link #takeRequest}.
+     * Disable this when pushing many resources per response so that pushes don't flood the request
+     * queue. Pushes are counted either way.
+     */
+    public void setRecordPushPromises(boolean recordPushPromises) {
+        this.recordPushPromises = recordPushPromises;
+    }
+
+    /**
+     * Returns the number of HTTP/2 streams this server has pushed.
+     */
+    public long getPushCount() {
+        return pushCount.get();
+    }
+
+    /**
+     * Returns the number of responses {@linkplain MockResponse#setEvaluatePreconditions evaluating
+     * preconditions} that were served as {@code 304 Not Modified}.
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * Returns the number of responses {@linkplain MockResponse#setEvaluatePreconditions evaluating
+     * preconditions} that were served in full because the client's copy was missing or stale.
+     */
+    public long getFullResponseCount() {
+        return fullResponseCount.get();
+    }
+
     /**
      * Sets whether ALPN is used on incoming HTTPS connections to negotiate a protocol like HTTP/1.1
      * or HTTP/2. Call this method to disable negotiation and restrict connections to HTTP/1.1.
@@ -151,6 +374,11 @@ public final class MockWebServer implements Closeable {
      * Indicates the protocols supported by ALPN on incoming HTTPS connections. This list is ignored
      * when {@link #setProtocolNegotiationEnabled negotiation is disabled}.
      *
+     * <p>When this list contains {@linkplain Protocol#HTTP_2} and HTTPS isn't used, connections that
+     * start with the HTTP/2 connection preface are served with cleartext HTTP/2 (h2c with prior
+     * knowledge). Other connections are served with HTTP/1.1, including those asking to upgrade with
+     * {@code Upgrade: h2c}.
+     *
      * @param protocols the protocols to use, in order of preference. The list must contain
      *                  {@linkplain Protocol#HTTP_1_1}. It must not contain null.
      */
@@ -172,9 +400,53 @@ public final class MockWebServer implements Closeable {
      */
     public void useHttps(SSLSocketFactory sslSocketFactory, boolean tunnelProxy) {
         this.sslSocketFactory = sslSocketFactory;
+        this.sslContext = null;
+        this.tunnelProxy = tunnelProxy;
+    }
+
+    /**
+     * Serve requests with HTTPS using the sockets of {@code sslContext}. Unlike {@link
+     * #useHttps(SSLSocketFactory, boolean)} this lets {@link TlsOptions} configure the session cache.
+     * The cache belongs to the context: while this server runs, other users of the context see its
+     * settings too. Give each server its own context to keep them apart.
+     *
+     * @param tunnelProxy true to expect the HTTP CONNECT method before negotiating TLS.
+     */
+    public void useHttps(SSLContext sslContext, boolean tunnelProxy) {
+        this.sslSocketFactory = sslContext.getSocketFactory();
+        this.sslContext = sslContext;
         this.tunnelProxy = tunnelProxy;
     }
 
+    /**
+     * Sets the TLS session settings of HTTPS connections. Session cache and ticket settings are
+     * applied when the server starts, and the settings they replaced are restored when it shuts
+     * down.
+     */
+    public void setTlsOptions(TlsOptions tlsOptions) {
+        if (tlsOptions == null) throw new NullPointerException("tlsOptions == null");
+        this.tlsOptions = tlsOptions;
+    }
+
+    public TlsOptions getTlsOptions() {
+        return tlsOptions;
+    }
+
+    /**
+     * Returns the durations of the TLS handshakes that established a new session.
+     */
+    public LatencyStats getFullHandshakeStats() {
+        return fullHandshakeStats;
+    }
+
+    /**
+     * Returns the durations of the TLS handshakes that resumed an earlier session. A handshake is
+     * considered resumed when its session was created before the handshake started.
+     */
+    public LatencyStats getResumedHandshakeStats() {
+        return resumedHandshakeStats;
+    }
+
     /**
      * Awaits the next HTTP request, removes it, and returns it. Callers should use this to verify the
      * request was sent as intended. This method will block until the request is available, possibly
@@ -211,9 +483,21 @@ public final class MockWebServer implements Closeable {
      * Scripts {@code response} to be returned to a request made in sequence. The first request is
      * served by the first enqueued response; the second request by the second enqueued response; and
      * so on.
+     *
+     * <p>The response is copied so that later changes don't affect it, unless it is {@linkplain
+     * MockResponse#freeze() frozen}.
      */
     public void enqueue(MockResponse response) {
-        ((QueueDispatcher) dispatcher).enqueueResponse(response.clone());
+        ((QueueDispatcher) dispatcher).enqueueResponse(response.isFrozen() ? response : response.clone());
+    }
+
+    /**
+     * Scripts {@code response} to answer the next {@code times} requests made in sequence, or all
+     * of them if {@code times} is {@link QueueDispatcher#FOREVER}. The response is frozen once and
+     * stored once, whatever the number of requests it answers.
+     */
+    public void enqueue(MockResponse response, long times) {
+        ((QueueDispatcher) dispatcher).enqueueResponse(response, times);
     }
 
     /**
@@ -257,58 +541,118 @@ public final class MockWebServer implements Closeable {
         if (started) throw new IllegalStateException("start() already called");
         started = true;
 
-        executor = Executors.newCachedThreadPool(Util.threadFactory("MockWebServer", false));
+        executor = Executors.newCachedThreadPool(threadFactory);
+        settingsScheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
         this.inetSocketAddress = inetSocketAddress;
-        serverSocket = serverSocketFactory.createServerSocket();
-        // Reuse if the user specified a port
-        serverSocket.setReuseAddress(inetSocketAddress.getPort() != 0);
-        serverSocket.bind(inetSocketAddress, 50);
-
-        port = serverSocket.getLocalPort();
-        executor.execute(new NamedRunnable("MockWebServer %s", port) {
-            @Override
-            protected void execute() {
-                try {
-                    logger.info(MockWebServer.this + " starting to accept connections");
-                    acceptConnections();
-                } catch (Throwable e) {
-                    logger.log(Level.WARNING, MockWebServer.this + " failed unexpectedly", e);
-                }
-
-                // Release all sockets and all threads, even if any close fails.
-                closeQuietly(serverSocket);
-                for (Iterator<Socket> s = openClientSockets.iterator(); s.hasNext(); ) {
-                    closeQuietly(s.next());
-                    s.remove();
-                }
-                for (Iterator<Http2Connection> s = openConnections.iterator(); s.hasNext(); ) {
-                    closeQuietly(s.next());
-                    s.remove();
-                }
-                dispatcher.shutdown();
-                executor.shutdown();
+        try {
+            if (sslSocketFactory != null) {
+                tlsOptionsRestore = tlsOptions.apply(sslContext);
+            }
+            bindAcceptorSockets(inetSocketAddress);
+        } catch (IOException | RuntimeException e) {
+            // Release what was bound so that the server can be configured and started again.
+            restoreTlsOptions();
+            for (ServerSocket acceptorSocket : acceptorSockets) {
+                closeQuietly(acceptorSocket);
             }
+            if (serverSocket != null) closeQuietly(serverSocket);
+            acceptorSockets.clear();
+            serverSocket = null;
+            executor.shutdown();
+            executor = null;
+            settingsScheduler.shutdownNow();
+            settingsScheduler = null;
+            started = false;
+            throw e;
+        }
 
-            private void acceptConnections() throws Exception {
-                while (true) {
-                    Socket socket;
+        final AtomicInteger runningAcceptors = new AtomicInteger(acceptorCount);
+        for (int i = 0; i < acceptorCount; i++) {
+            final int acceptor = i;
+            final ServerSocket acceptorSocket = acceptorSockets.get(i);
+            executor.execute(new NamedRunnable("MockWebServer %s acceptor %s", port, acceptor) {
+                @Override
+                protected void execute() {
                     try {
-                        socket = serverSocket.accept();
-                    } catch (SocketException e) {
-                        logger.info(MockWebServer.this + " done accepting connections: " + e.getMessage());
-                        return;
+                        logger.info(MockWebServer.this + " starting to accept connections");
+                        acceptConnections();
+                    } catch (Throwable e) {
+                        logger.log(Level.WARNING, MockWebServer.this + " failed unexpectedly", e);
                     }
-                    SocketPolicy socketPolicy = dispatcher.peek().getSocketPolicy();
-                    if (socketPolicy == DISCONNECT_AT_START) {
-                        dispatchBookkeepingRequest(0, socket);
-                        socket.close();
-                    } else {
+
+                    // The last acceptor out releases all sockets and all threads, even if any close fails.
+                    closeQuietly(acceptorSocket);
+                    if (runningAcceptors.decrementAndGet() == 0) {
+                        releaseConnections();
+                    }
+                }
+
+                private void acceptConnections() throws Exception {
+                    while (true) {
+                        Socket socket;
+                        try {
+                            socket = acceptorSocket.accept();
+                        } catch (SocketException e) {
+                            logger.info(MockWebServer.this + " done accepting connections: " + e.getMessage());
+                            return;
+                        }
+                        acceptedConnections.incrementAndGet(acceptor);
                         openClientSockets.add(socket);
                         serveConnection(socket);
                     }
                 }
+            });
+        }
+    }
+
+    private void releaseConnections() {
+        for (ServerSocket acceptorSocket : acceptorSockets) {
+            closeQuietly(acceptorSocket);
+        }
+        for (Iterator<Socket> s = openClientSockets.iterator(); s.hasNext(); ) {
+            closeQuietly(s.next());
+            s.remove();
+        }
+        for (Iterator<Http2Connection> s = openConnections.iterator(); s.hasNext(); ) {
+            closeQuietly(s.next());
+            s.remove();
+        }
+        for (Iterator<StreamScheduler> s = streamSchedulers.iterator(); s.hasNext(); ) {
+            s.next().shutdown();
+            s.remove();
+        }
+        for (Iterator<EventStream> s = servingEventStreams.iterator(); s.hasNext(); ) {
+            s.next().cancel();
+            s.remove();
+        }
+        dispatcher.shutdown();
+        settingsScheduler.shutdownNow();
+        executor.shutdown();
+    }
+
+    private void bindAcceptorSockets(InetSocketAddress inetSocketAddress) throws IOException {
+        serverSocket = serverSocketFactory.createServerSocket();
+        // Reuse if the user specified a port
+        serverSocket.setReuseAddress(inetSocketAddress.getPort() != 0);
+        boolean reusePort = acceptorCount > 1 && setReusePort(serverSocket);
+        socketOptions.applyBeforeBind(serverSocket);
+        serverSocket.bind(inetSocketAddress, socketOptions.getBacklog());
+
+        port = serverSocket.getLocalPort();
+        acceptorSockets.add(serverSocket);
+        for (int i = 1; i < acceptorCount; i++) {
+            if (reusePort) {
+                // Each acceptor gets its own socket on the same port so accept() doesn't contend.
+                ServerSocket acceptorSocket = serverSocketFactory.createServerSocket();
+                acceptorSockets.add(acceptorSocket);
+                setReusePort(acceptorSocket);
+                socketOptions.applyBeforeBind(acceptorSocket);
+                acceptorSocket.bind(new InetSocketAddress(inetSocketAddress.getAddress(), port),
+                        socketOptions.getBacklog());
+            } else {
+                acceptorSockets.add(serverSocket);
             }
-        });
+        }
     }
 
     public synchronized void shutdown() throws IOException {
@@ -316,7 +660,9 @@ public final class MockWebServer implements Closeable {
         if (serverSocket == null) throw new IllegalStateException("shutdown() before start()");
 
         // Cause acceptConnections() to break out.
-        serverSocket.close();
+        for (ServerSocket acceptorSocket : acceptorSockets) {
+            acceptorSocket.close();
+        }
 
         // Await shutdown.
         try {
@@ -325,36 +671,64 @@ public final class MockWebServer implements Closeable {
             }
         } catch (InterruptedException e) {
             throw new AssertionError();
+        } finally {
+            restoreTlsOptions();
+        }
+    }
+
+    private void restoreTlsOptions() {
+        if (tlsOptionsRestore != null) {
+            tlsOptionsRestore.run();
+            tlsOptionsRestore = null;
         }
     }
 
     private void serveConnection(final Socket raw) {
         executor.execute(new NamedRunnable("MockWebServer %s", raw.getRemoteSocketAddress()) {
+            final long connectedAtNanos = System.nanoTime();
             int sequenceNumber = 0;
+            RecordedConnection recordedConnection = RecordedConnection.plaintext(Protocol.HTTP_1_1);
 
             @Override
             protected void execute() {
                 try {
                     processConnection();
-                } catch (IOException e) {
+                } catch (Exception e) {
+                    logFailure(e);
+                }
+            }
+
+            private void logFailure(Exception e) {
+                if (e instanceof IOException) {
                     logger.info(
                             MockWebServer.this + " connection from " + raw.getInetAddress() + " failed: " + e);
-                } catch (Exception e) {
+                } else {
                     logger.log(Level.SEVERE,
                             MockWebServer.this + " connection from " + raw.getInetAddress() + " crashed", e);
                 }
             }
 
             public void processConnection() throws Exception {
+                // Peek here rather than in the acceptor so that slow dispatchers don't hold up accept().
+                // The connection's policy is resolved once, then again only if a tunnel consumed it.
+                MockResponse connectionPolicy = dispatcher.peek();
+                if (connectionPolicy.getSocketPolicy() == DISCONNECT_AT_START) {
+                    dispatchBookkeepingRequest(0, raw, recordedConnection);
+                    raw.close();
+                    openClientSockets.remove(raw);
+                    return;
+                }
+                socketOptions.apply(raw);
+
                 Protocol protocol = Protocol.HTTP_1_1;
                 Socket socket;
                 if (sslSocketFactory != null) {
                     if (tunnelProxy) {
                         createTunnel();
+                        connectionPolicy = dispatcher.peek();
                     }
-                    SocketPolicy socketPolicy = dispatcher.peek().getSocketPolicy();
-                    if (socketPolicy == FAIL_HANDSHAKE) {
-                        dispatchBookkeepingRequest(sequenceNumber, raw);
+                    if (connectionPolicy.getSocketPolicy() == FAIL_HANDSHAKE) {
+                        dispatchBookkeepingRequest(sequenceNumber, raw, recordedConnection);
                         processHandshakeFailure(raw);
                         return;
                     }
@@ -362,43 +736,154 @@ public final class MockWebServer implements Closeable {
                             raw.getPort(), true);
                     SSLSocket sslSocket = (SSLSocket) socket;
                     sslSocket.setUseClientMode(false);
+                    if (tlsOptions.getClientAuth() == TlsOptions.ClientAuth.NEED) {
+                        sslSocket.setNeedClientAuth(true);
+                    } else if (tlsOptions.getClientAuth() == TlsOptions.ClientAuth.WANT) {
+                        sslSocket.setWantClientAuth(true);
+                    }
                     openClientSockets.add(socket);
 
                     if (protocolNegotiationEnabled) {
                         Platform.get().configureTlsExtensions(sslSocket, null, protocols);
                     }
 
+                    long handshakeStartMillis = System.currentTimeMillis();
+                    long handshakeStartNanos = System.nanoTime();
                     sslSocket.startHandshake();
+                    long handshakeNanos = System.nanoTime() - handshakeStartNanos;
+
+                    SSLSession session = sslSocket.getSession();
+                    if (session.getCreationTime() < handshakeStartMillis) {
+                        resumedHandshakeStats.record(handshakeNanos);
+                    } else {
+                        fullHandshakeStats.record(handshakeNanos);
+                    }
+                    if (tlsOptions.getForceFullHandshakes()) {
+                        session.invalidate();
+                    }
 
                     if (protocolNegotiationEnabled) {
                         String protocolString = Platform.get().getSelectedProtocol(sslSocket);
                         protocol = protocolString != null ? Protocol.get(protocolString) : Protocol.HTTP_1_1;
                     }
+                    recordedConnection = RecordedConnection.of(sslSocket, protocol, handshakeNanos);
                     openClientSockets.remove(raw);
                 } else {
                     socket = raw;
                 }
 
+                BufferedSource source = Okio.buffer(Okio.source(socket));
+                BufferedSink sink = Okio.buffer(Okio.sink(socket));
+
+                if (sslSocketFactory == null && protocolNegotiationEnabled
+                        && protocols.contains(Protocol.HTTP_2)) {
+                    boolean prefaced;
+                    try {
+                        prefaced = source.rangeEquals(0, HTTP2_CONNECTION_PREFACE);
+                    } catch (IOException e) {
+                        // The client sent nothing before the idle timeout, or went away.
+                        endConnection(socket);
+                        return;
+                    }
+                    if (prefaced) {
+                        protocol = Protocol.HTTP_2;
+                        recordedConnection = RecordedConnection.plaintext(protocol);
+                    }
+                }
+
                 if (protocol == Protocol.HTTP_2) {
-                    Http2SocketHandler http2SocketHandler = new Http2SocketHandler(socket, protocol);
+                    Http2Profile profile = http2Profile;
+                    Http2SocketHandler http2SocketHandler = new Http2SocketHandler(socket, recordedConnection,
+                            connectedAtNanos, profile);
+                    // Hand over the buffered source: it holds the preface of cleartext connections.
+                    // The connection closes it once it stops reading frames.
+                    BufferedSource connectionSource = Okio.buffer(new ForwardingSource(source) {
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                http2SocketHandler.connectionClosed();
+                            }
+                        }
+                    });
                     Http2Connection connection = new Http2Connection.Builder(false)
-                            .socket(socket)
+                            .socket(socket, raw.getInetAddress().getHostAddress(), connectionSource, sink)
                             .listener(http2SocketHandler)
                             .build();
                     connection.start();
                     openConnections.add(connection);
                     openClientSockets.remove(socket);
+                    applyHttp2Profile(connection, profile);
                     return;
                 } else if (protocol != Protocol.HTTP_1_1) {
                     throw new AssertionError();
                 }
 
-                BufferedSource source = Okio.buffer(Okio.source(socket));
-                BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                serveRequests(socket, source, sink);
+            }
 
-                while (processOneRequest(socket, source, sink)) {
+            /**
+             * Serves requests until the connection ends, or until a dispatched response is pending.
+             * In that case this thread is released, and serving resumes on another once the response
+             * is ready.
+             */
+            private void serveRequests(Socket socket, BufferedSource source, BufferedSink sink)
+                    throws IOException, InterruptedException {
+                while (true) {
+                    RecordedRequest request = readAndRecordRequest(socket, source, sink, null);
+                    if (request == null) break;
+                    CompletableFuture<MockResponse> pending = dispatcher.dispatchAsync(request).toCompletableFuture();
+                    if (!pending.isDone()) {
+                        pending.whenComplete((response, failure) -> resume(socket, source, sink, request, pending));
+                        return;
+                    }
+                    MockResponse response;
+                    try {
+                        response = awaitResponse(pending);
+                    } catch (IOException e) {
+                        failConnection(socket, e);
+                        return;
+                    }
+                    if (!respond(socket, source, sink, request, response)) break;
                 }
+                endConnection(socket);
+            }
 
+            private void resume(Socket socket, BufferedSource source, BufferedSink sink,
+                                RecordedRequest request, CompletableFuture<MockResponse> pending) {
+                try {
+                    executor.execute(new NamedRunnable("MockWebServer %s", raw.getRemoteSocketAddress()) {
+                        @Override
+                        protected void execute() {
+                            try {
+                                if (respond(socket, source, sink, request, awaitResponse(pending))) {
+                                    serveRequests(socket, source, sink);
+                                } else {
+                                    endConnection(socket);
+                                }
+                            } catch (Exception e) {
+                                failConnection(socket, e);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The server shut down while the response was pending.
+                    closeQuietly(socket);
+                    openClientSockets.remove(socket);
+                }
+            }
+
+            /**
+             * Closes a connection that can't be served anymore, rather than leave its client waiting.
+             */
+            private void failConnection(Socket socket, Exception e) {
+                logFailure(e);
+                closeQuietly(socket);
+                openClientSockets.remove(socket);
+            }
+
+            private void endConnection(Socket socket) throws IOException {
                 if (sequenceNumber == 0) {
                     logger.warning(MockWebServer.this
                             + " connection from "
@@ -410,6 +895,33 @@ public final class MockWebServer implements Closeable {
                 openClientSockets.remove(socket);
             }
 
+            /**
+             * Sends the profile's settings, then schedules its changes. Changes still pending when
+             * the server shuts down are cancelled.
+             */
+            private void applyHttp2Profile(Http2Connection connection, Http2Profile profile)
+                    throws IOException {
+                Settings initialSettings = profile.getInitialSettings();
+                if (initialSettings != null) {
+                    connection.setSettings(initialSettings);
+                }
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectedAtNanos);
+                for (Http2Profile.SettingsChange change : profile.getSettingsChanges()) {
+                    try {
+                        settingsScheduler.schedule(() -> {
+                            if (connection.isShutdown()) return;
+                            try {
+                                connection.setSettings(change.settings);
+                            } catch (IOException e) {
+                                logger.log(Level.INFO, MockWebServer.this + " failed to change settings", e);
+                            }
+                        }, Math.max(0, change.delayMillis - elapsedMillis), TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        return; // The server is shutting down.
+                    }
+                }
+            }
+
             /**
              * Respond to CONNECT requests until a SWITCH_TO_SSL_AT_END response is
              * dispatched.
@@ -418,11 +930,11 @@ public final class MockWebServer implements Closeable {
                 BufferedSource source = Okio.buffer(Okio.source(raw));
                 BufferedSink sink = Okio.buffer(Okio.sink(raw));
                 while (true) {
-                    SocketPolicy socketPolicy = dispatcher.peek().getSocketPolicy();
-                    if (!processOneRequest(raw, source, sink)) {
+                    MockResponse policy = dispatcher.peek();
+                    if (!processOneRequest(raw, source, sink, policy)) {
                         throw new IllegalStateException("Tunnel without any CONNECT!");
                     }
-                    if (socketPolicy == UPGRADE_TO_SSL_AT_END) return;
+                    if (policy.getSocketPolicy() == UPGRADE_TO_SSL_AT_END) return;
                 }
             }
 
@@ -430,15 +942,32 @@ public final class MockWebServer implements Closeable {
              * Reads a request and writes its response. Returns true if further calls should be attempted
              * on the socket.
              */
-            private boolean processOneRequest(Socket socket, BufferedSource source, BufferedSink sink)
-                    throws IOException, InterruptedException {
-                RecordedRequest request = readRequest(socket, source, sink, sequenceNumber);
+            private boolean processOneRequest(Socket socket, BufferedSource source, BufferedSink sink,
+                                              MockResponse policy) throws IOException, InterruptedException {
+                RecordedRequest request = readAndRecordRequest(socket, source, sink, policy);
                 if (request == null) return false;
+                return respond(socket, source, sink, request,
+                        awaitResponse(dispatcher.dispatchAsync(request).toCompletableFuture()));
+            }
+
+            private RecordedRequest readAndRecordRequest(Socket socket, BufferedSource source, BufferedSink sink,
+                                                         MockResponse policy) throws IOException {
+                RecordedRequest request = readRequest(socket, source, sink, sequenceNumber, recordedConnection,
+                        policy);
+                if (request == null) return null;
 
                 requestCount.incrementAndGet();
                 requestQueue.add(request);
+                return request;
+            }
 
-                MockResponse response = dispatcher.dispatch(request);
+            /**
+             * Writes the response to {@code request}. Returns true if further requests should be
+             * read on the socket.
+             */
+            private boolean respond(Socket socket, BufferedSource source, BufferedSink sink,
+                                    RecordedRequest request, MockResponse dispatched) throws IOException {
+                MockResponse response = negotiate(request, dispatched);
                 if (response.getSocketPolicy() == DISCONNECT_AFTER_REQUEST) {
                     socket.close();
                     return false;
@@ -453,11 +982,14 @@ public final class MockWebServer implements Closeable {
                 boolean requestWantsWebSockets = "Upgrade".equalsIgnoreCase(request.getHeader("Connection"))
                         && "websocket".equalsIgnoreCase(request.getHeader("Upgrade"));
                 boolean responseWantsWebSockets = response.getWebSocketListener() != null;
+                boolean keepAliveExhausted = false;
                 if (requestWantsWebSockets && responseWantsWebSockets) {
                     handleWebSocketUpgrade(socket, source, sink, request, response);
                     reuseSocket = false;
                 } else {
-                    writeHttpResponse(socket, sink, response);
+                    keepAliveExhausted = keepAlivePolicy.isExhausted(sequenceNumber + 1, connectedAtNanos);
+                    writeHttpResponse(socket, sink, response,
+                            keepAliveExhausted && keepAlivePolicy.getSignalClose());
                 }
 
                 if (logger.isLoggable(Level.INFO)) {
@@ -475,12 +1007,44 @@ public final class MockWebServer implements Closeable {
                     socket.shutdownOutput();
                 }
 
+                if (keepAliveExhausted) {
+                    socket.close();
+                    return false;
+                }
+
                 sequenceNumber++;
                 return reuseSocket;
             }
         });
     }
 
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Enables {@code SO_REUSEPORT} on {@code serverSocket} before it is bound. Returns false if the
+     * runtime or the operating system doesn't support it.
+     */
+    private static boolean setReusePort(ServerSocket serverSocket) {
+        if (SO_REUSEPORT == null) return false;
+        try {
+            Method supportedOptions = ServerSocket.class.getMethod("supportedOptions");
+            if (!((Set<?>) supportedOptions.invoke(serverSocket)).contains(SO_REUSEPORT)) return false;
+            Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+            setOption.invoke(serverSocket, SO_REUSEPORT, true);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            logger.log(Level.FINE, "SO_REUSEPORT unavailable", e);
+            return false;
+        }
+    }
+
     private void processHandshakeFailure(Socket raw) throws Exception {
         SSLContext context = SSLContext.getInstance("TLS");
         context.init(null, new TrustManager[]{UNTRUSTED_TRUST_MANAGER}, new SecureRandom());
@@ -495,10 +1059,10 @@ public final class MockWebServer implements Closeable {
         socket.close();
     }
 
-    private void dispatchBookkeepingRequest(int sequenceNumber, Socket socket)
-            throws InterruptedException {
+    private void dispatchBookkeepingRequest(int sequenceNumber, Socket socket,
+                                            RecordedConnection connection) throws InterruptedException {
         RecordedRequest request = new RecordedRequest(
-                null, null, null, -1, null, sequenceNumber, socket);
+                null, null, null, -1, null, sequenceNumber, socket, connection);
         requestCount.incrementAndGet();
         requestQueue.add(request);
         dispatcher.dispatch(request);
@@ -506,9 +1070,13 @@ public final class MockWebServer implements Closeable {
 
     /**
      * @param sequenceNumber the index of this request on this connection.
+     * @param connection     the connection's details, shared by all its requests.
+     * @param policy         the response peeked for this request, or null to peek once the request
+     *                       head is read. It decides how the request is received.
      */
     private RecordedRequest readRequest(Socket socket, BufferedSource source, BufferedSink sink,
-                                        int sequenceNumber) throws IOException {
+                                        int sequenceNumber, RecordedConnection connection, MockResponse policy)
+            throws IOException {
         String request;
         try {
             request = source.readUtf8LineStrict();
@@ -540,7 +1108,8 @@ public final class MockWebServer implements Closeable {
             }
         }
 
-        if (expectContinue && dispatcher.peek().getSocketPolicy() == EXPECT_CONTINUE) {
+        if (policy == null) policy = dispatcher.peek();
+        if (expectContinue && policy.getSocketPolicy() == EXPECT_CONTINUE) {
             sink.writeUtf8("HTTP/1.1 100 Continue\r\n");
             sink.writeUtf8("Content-Length: 0\r\n");
             sink.writeUtf8("\r\n");
@@ -549,11 +1118,18 @@ public final class MockWebServer implements Closeable {
 
         boolean hasBody = false;
         TruncatingBuffer requestBody = new TruncatingBuffer(bodyLimit);
+        MultipartIngest multipart = parseMultipartBodies
+                ? MultipartIngest.create(requestBody, headers.get("Content-Type"), requestBodyDigestAlgorithm,
+                multipartSpoolDirectory)
+                : null;
+        Sink multipartSink = multipart != null ? multipart : requestBody;
+        RequestBodyIngest ingest = RequestBodyIngest.create(multipartSink,
+                headers.get("Content-Encoding"), decodeRequestBodies, requestBodyDigestAlgorithm);
+        Sink requestBodySink = ingest != null ? ingest : multipartSink;
         List<Integer> chunkSizes = new ArrayList<>();
-        MockResponse policy = dispatcher.peek();
         if (contentLength != -1) {
             hasBody = contentLength > 0;
-            throttledTransfer(policy, socket, source, Okio.buffer(requestBody), contentLength, true);
+            throttledTransfer(policy, socket, source, Okio.buffer(requestBodySink), contentLength, true);
         } else if (chunked) {
             hasBody = true;
             while (true) {
@@ -563,7 +1139,7 @@ public final class MockWebServer implements Closeable {
                     break;
                 }
                 chunkSizes.add(chunkSize);
-                throttledTransfer(policy, socket, source, Okio.buffer(requestBody), chunkSize, true);
+                throttledTransfer(policy, socket, source, Okio.buffer(requestBodySink), chunkSize, true);
                 readEmptyLine(source);
             }
         }
@@ -574,18 +1150,22 @@ public final class MockWebServer implements Closeable {
         }
 
         return new RecordedRequest(request, headers.build(), chunkSizes, requestBody.receivedByteCount,
-                requestBody.buffer, sequenceNumber, socket);
+                requestBody.buffer, sequenceNumber, socket, connection, ingest != null ? ingest.finish() : null,
+                multipart != null ? multipart.finish() : null);
     }
 
     private void handleWebSocketUpgrade(Socket socket, BufferedSource source, BufferedSink sink,
                                         RecordedRequest request, MockResponse response) throws IOException {
+        // Web sockets are long-lived by design, don't reap them as idle connections.
+        socket.setSoTimeout(0);
         String key = request.getHeader("Sec-WebSocket-Key");
-        response.setHeader("Sec-WebSocket-Accept", WebSocketProtocol.acceptHeader(key));
+        // Don't change the dispatched response, which may be frozen or served again.
+        response = response.clone().setHeader("Sec-WebSocket-Accept", WebSocketProtocol.acceptHeader(key));
 
-        writeHttpResponse(socket, sink, response);
+        writeHttpResponse(socket, sink, response, false);
 
         // Adapt the request and response into our Request and Response domain model.
-        String scheme = request.getTlsVersion() != null ? "https" : "http";
+        String scheme = request.getRequestUrl().scheme();
         String authority = request.getHeader("Host"); // Has host and port.
         final Request fancyRequest = new Request.Builder()
                 .url(scheme + "://" + authority + "/")
@@ -599,18 +1179,24 @@ public final class MockWebServer implements Closeable {
                 .protocol(Protocol.HTTP_1_1)
                 .build();
 
+        WebSocketListener listener = response.getWebSocketListener();
+        RealWebSocket webSocket = new RealWebSocket(fancyRequest, listener, new SecureRandom());
+        BufferedSink webSocketSink = listener instanceof WebSocketHub
+                ? Okio.buffer(((WebSocketHub) listener).subscribe(webSocket, sink, socket))
+                : sink;
         final CountDownLatch connectionClose = new CountDownLatch(1);
-        RealWebSocket.Streams streams = new RealWebSocket.Streams(false, source, sink) {
+        RealWebSocket.Streams streams = new RealWebSocket.Streams(false, source, webSocketSink) {
             @Override
             public void close() {
                 connectionClose.countDown();
             }
         };
-        RealWebSocket webSocket = new RealWebSocket(fancyRequest,
-                response.getWebSocketListener(), new SecureRandom());
-        response.getWebSocketListener().onOpen(webSocket, fancyResponse);
+        listener.onOpen(webSocket, fancyResponse);
         String name = "MockWebServer WebSocket " + request.getPath();
-        webSocket.initReaderAndWriter(name, 0, streams);
+        long pingIntervalMillis = listener instanceof WebSocketScenario
+                ? ((WebSocketScenario) listener).getPingIntervalMillis()
+                : 0;
+        webSocket.initReaderAndWriter(name, pingIntervalMillis, streams);
         try {
             webSocket.loopReader();
 
@@ -627,8 +1213,12 @@ public final class MockWebServer implements Closeable {
         }
     }
 
-    private void writeHttpResponse(Socket socket, BufferedSink sink, MockResponse response)
-            throws IOException {
+    /**
+     * @param closeConnection true to announce with a {@code Connection: close} header that the
+     *                        connection will be closed after this response.
+     */
+    private void writeHttpResponse(Socket socket, BufferedSink sink, MockResponse response,
+                                   boolean closeConnection) throws IOException {
         sleepIfDelayed(response.getBodyDelay(TimeUnit.MILLISECONDS));
         sink.writeUtf8(response.getStatus());
         sink.writeUtf8("\r\n");
@@ -640,13 +1230,52 @@ public final class MockWebServer implements Closeable {
             sink.writeUtf8(headers.value(i));
             sink.writeUtf8("\r\n");
         }
+        if (closeConnection && !"close".equalsIgnoreCase(headers.get("Connection"))) {
+            sink.writeUtf8("Connection: close\r\n");
+        }
         sink.writeUtf8("\r\n");
         sink.flush();
 
-        Buffer body = response.getBody();
+        EventStream eventStream = response.getEventStream();
+        if (eventStream != null) {
+            sleepIfDelayed(response.getBodyDelay(TimeUnit.MILLISECONDS));
+            writeEventStream(eventStream, socket, sink, true);
+            return;
+        }
+
+        Buffer body = response.getBodyBuffer();
         if (body == null) return;
         sleepIfDelayed(response.getBodyDelay(TimeUnit.MILLISECONDS));
-        throttledTransfer(response, socket, body, sink, body.size(), false);
+        throttledTransfer(response, socket, new SharedBodySource(body), sink, body.size(), false);
+    }
+
+    /**
+     * Returns the response of a completed dispatch, failing if the dispatcher failed.
+     */
+    private static MockResponse awaitResponse(CompletableFuture<MockResponse> pending)
+            throws IOException, InterruptedException {
+        try {
+            return pending.get();
+        } catch (ExecutionException e) {
+            throw new IOException("dispatch failed", e.getCause());
+        }
+    }
+
+    /**
+     * Adapts the dispatched {@code response} to the request's content negotiation headers.
+     */
+    private MockResponse negotiate(RecordedRequest request, MockResponse response) {
+        if (response.getEvaluatePreconditions()) {
+            if (Preconditions.isNotModified(request, response)) {
+                notModifiedCount.incrementAndGet();
+                return response.notModified();
+            }
+            fullResponseCount.incrementAndGet();
+        }
+        MockResponse partial = ByteRanges.apply(response, request.getHeader("Range"),
+                request.getHeader("If-Range"));
+        if (partial != response) return partial;
+        return response.encodeFor(request.getHeader("Accept-Encoding"));
     }
 
     private void sleepIfDelayed(long delayMs) {
@@ -659,13 +1288,36 @@ public final class MockWebServer implements Closeable {
         }
     }
 
+    /**
+     * Writes {@code eventStream} to {@code sink}, ending it early if the server shuts down.
+     */
+    private void writeEventStream(EventStream eventStream, Socket socket, BufferedSink sink,
+                                  boolean chunked) throws IOException {
+        servingEventStreams.add(eventStream);
+        try {
+            eventStream.writeTo(socket, sink, chunked);
+        } finally {
+            servingEventStreams.remove(eventStream);
+        }
+    }
+
     /**
      * Transfer bytes from {@code source} to {@code sink} until either {@code byteCount} bytes have
      * been transferred or {@code source} is exhausted. The transfer is throttled according to {@code
      * policy}.
      */
-    private void throttledTransfer(MockResponse policy, Socket socket, BufferedSource source,
+    private void throttledTransfer(MockResponse policy, Socket socket, Source source,
                                    BufferedSink sink, long byteCount, boolean isRequest) throws IOException {
+        throttledTransfer(policy, socket, source, sink, byteCount, isRequest, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #throttledTransfer(MockResponse, Socket, Source, BufferedSink, long, boolean)},
+     * flushing at most {@code maxFlushSize} bytes at a time.
+     */
+    private void throttledTransfer(MockResponse policy, Socket socket, Source source,
+                                   BufferedSink sink, long byteCount, boolean isRequest, long maxFlushSize)
+            throws IOException {
         if (byteCount == 0) return;
 
         Buffer buffer = new Buffer();
@@ -680,7 +1332,7 @@ public final class MockWebServer implements Closeable {
         while (!socket.isClosed()) {
             for (int b = 0; b < bytesPerPeriod; ) {
                 // Ensure we do not read past the allotted bytes in this period.
-                long toRead = Math.min(byteCount, bytesPerPeriod - b);
+                long toRead = Math.min(Math.min(byteCount, bytesPerPeriod - b), maxFlushSize);
                 // Ensure we do not read past halfway if the policy will kill the connection.
                 if (disconnectHalfway) {
                     toRead = Math.min(toRead, byteCount - halfByteCount);
@@ -737,6 +1389,37 @@ public final class MockWebServer implements Closeable {
         shutdown();
     }
 
+    /**
+     * Reads a response body without consuming it. Reads share the body's segments rather than
+     * copying its bytes, so that one body can be written to any number of clients concurrently.
+     */
+    static final class SharedBodySource implements Source {
+        private final Buffer body;
+        private long offset;
+
+        SharedBodySource(Buffer body) {
+            this.body = body;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) {
+            if (offset == body.size()) return -1;
+            long read = Math.min(byteCount, body.size() - offset);
+            body.copyTo(sink, offset, read);
+            offset += read;
+            return read;
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
     /**
      * A buffer wrapper that drops data after {@code bodyLimit} bytes.
      */
@@ -783,19 +1466,81 @@ public final class MockWebServer implements Closeable {
     private class Http2SocketHandler extends Http2Connection.Listener {
         private final Socket socket;
         private final Protocol protocol;
+        private final RecordedConnection recordedConnection;
+        private final long connectedAtNanos;
+        private final Http2Profile profile;
         private final AtomicInteger sequenceNumber = new AtomicInteger();
+        private final AtomicInteger streamCount = new AtomicInteger();
+        private final StreamScheduler scheduler;
 
-        private Http2SocketHandler(Socket socket, Protocol protocol) {
+        private Http2SocketHandler(Socket socket, RecordedConnection recordedConnection,
+                                   long connectedAtNanos, Http2Profile profile) {
             this.socket = socket;
-            this.protocol = protocol;
+            this.protocol = recordedConnection.getProtocol();
+            this.recordedConnection = recordedConnection;
+            this.connectedAtNanos = connectedAtNanos;
+            this.profile = profile;
+            this.scheduler = maxConcurrentStreamDispatches != Integer.MAX_VALUE
+                    ? new StreamScheduler(maxConcurrentStreamDispatches, threadFactory, streamQueueStats)
+                    : null;
+            if (scheduler != null) streamSchedulers.add(scheduler);
+        }
+
+        /**
+         * Releases the threads of this connection's scheduler once its queued streams are served.
+         */
+        private void connectionClosed() {
+            if (scheduler == null) return;
+            scheduler.shutdown();
+            streamSchedulers.remove(scheduler);
         }
 
         @Override
-        public void onStream(Http2Stream stream) throws IOException {
+        public void onStream(final Http2Stream stream) throws IOException {
+            if (keepAlivePolicy.isExhausted(streamCount.incrementAndGet(), connectedAtNanos)) {
+                // Refuse further streams but let this one and those in flight complete.
+                stream.getConnection().shutdown(ErrorCode.NO_ERROR);
+            }
+
+            if (scheduler == null) {
+                serveStream(stream);
+                return;
+            }
+            try {
+                scheduler.execute(StreamScheduler.urgency(stream.getRequestHeaders()), new NamedRunnable(
+                        "MockWebServer %s stream %s", socket.getRemoteSocketAddress(), stream.getId()) {
+                    @Override
+                    protected void execute() {
+                        try {
+                            serveStream(stream);
+                        } catch (IOException e) {
+                            failStream(stream, e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The connection or the server is closing.
+                stream.close(ErrorCode.REFUSED_STREAM);
+            }
+        }
+
+        private void failStream(Http2Stream stream, IOException e) {
+            failStream(stream, e, ErrorCode.PROTOCOL_ERROR);
+        }
+
+        private void failStream(Http2Stream stream, IOException e, ErrorCode errorCode) {
+            logger.log(Level.INFO, MockWebServer.this + " stream failed", e);
+            try {
+                stream.close(errorCode);
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void serveStream(Http2Stream stream) throws IOException {
             MockResponse peekedResponse = dispatcher.peek();
             if (peekedResponse.getSocketPolicy() == RESET_STREAM_AT_START) {
                 try {
-                    dispatchBookkeepingRequest(sequenceNumber.getAndIncrement(), socket);
+                    dispatchBookkeepingRequest(sequenceNumber.getAndIncrement(), socket, recordedConnection);
                     stream.close(ErrorCode.fromHttp2(peekedResponse.getHttp2ErrorCode()));
                     return;
                 } catch (InterruptedException e) {
@@ -803,16 +1548,56 @@ public final class MockWebServer implements Closeable {
                 }
             }
 
-            RecordedRequest request = readRequest(stream);
+            RecordedRequest request = readRequest(stream, peekedResponse);
             requestCount.incrementAndGet();
             requestQueue.add(request);
 
-            MockResponse response;
+            CompletableFuture<MockResponse> pending;
             try {
-                response = dispatcher.dispatch(request);
+                pending = dispatcher.dispatchAsync(request).toCompletableFuture();
             } catch (InterruptedException e) {
                 throw new AssertionError(e);
             }
+            if (pending.isDone()) {
+                respond(stream, request, pending);
+                return;
+            }
+            // Release this thread while the response is pending.
+            pending.whenComplete((response, failure) -> {
+                try {
+                    executor.execute(new NamedRunnable(
+                            "MockWebServer %s stream %s", socket.getRemoteSocketAddress(), stream.getId()) {
+                        @Override
+                        protected void execute() {
+                            try {
+                                respond(stream, request, pending);
+                            } catch (IOException e) {
+                                failStream(stream, e);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The server shut down while the response was pending.
+                    Http2Connection connection = stream.getConnection();
+                    closeQuietly(connection);
+                    openConnections.remove(connection);
+                }
+            });
+        }
+
+        private void respond(Http2Stream stream, RecordedRequest request,
+                             CompletableFuture<MockResponse> pending) throws IOException {
+            MockResponse dispatched;
+            try {
+                dispatched = awaitResponse(pending);
+            } catch (IOException e) {
+                // Reset the stream rather than leave its client waiting.
+                failStream(stream, e, ErrorCode.INTERNAL_ERROR);
+                return;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            MockResponse response = negotiate(request, dispatched);
             if (response.getSocketPolicy() == DISCONNECT_AFTER_REQUEST) {
                 socket.close();
                 return;
@@ -829,7 +1614,10 @@ public final class MockWebServer implements Closeable {
             }
         }
 
-        private RecordedRequest readRequest(Http2Stream stream) throws IOException {
+        /**
+         * @param peek the response peeked for this stream, which decides how its request is received.
+         */
+        private RecordedRequest readRequest(Http2Stream stream, MockResponse peek) throws IOException {
             List<Header> streamHeaders = stream.getRequestHeaders();
             Headers.Builder httpHeaders = new Headers.Builder();
             String method = "<:method omitted>";
@@ -854,7 +1642,6 @@ public final class MockWebServer implements Closeable {
             }
             Headers headers = httpHeaders.build();
 
-            MockResponse peek = dispatcher.peek();
             if (!readBody && peek.getSocketPolicy() == EXPECT_CONTINUE) {
                 stream.sendResponseHeaders(Collections.singletonList(
                         new Header(Header.RESPONSE_STATUS, ByteString.encodeUtf8("100 Continue"))), true);
@@ -862,19 +1649,29 @@ public final class MockWebServer implements Closeable {
                 readBody = true;
             }
 
-            Buffer body = new Buffer();
+            TruncatingBuffer requestBody = new TruncatingBuffer(bodyLimit);
+            MultipartIngest multipart = parseMultipartBodies
+                    ? MultipartIngest.create(requestBody, headers.get("content-type"), requestBodyDigestAlgorithm,
+                    multipartSpoolDirectory)
+                    : null;
+            Sink multipartSink = multipart != null ? multipart : requestBody;
+            RequestBodyIngest ingest = RequestBodyIngest.create(multipartSink, headers.get("content-encoding"),
+                    decodeRequestBodies, requestBodyDigestAlgorithm);
+            Sink requestBodySink = ingest != null ? ingest : multipartSink;
             if (readBody) {
                 String contentLengthString = headers.get("content-length");
                 long byteCount = contentLengthString != null
                         ? Long.parseLong(contentLengthString)
                         : Long.MAX_VALUE;
-                throttledTransfer(peek, socket, Okio.buffer(stream.getSource()), body, byteCount, true);
+                throttledTransfer(profile.requestBodyPolicy(peek), socket, Okio.buffer(stream.getSource()),
+                        Okio.buffer(requestBodySink), byteCount, true);
             }
 
             String requestLine = method + ' ' + path + " HTTP/1.1";
             List<Integer> chunkSizes = Collections.emptyList(); // No chunked encoding for HTTP/2.
-            return new RecordedRequest(requestLine, headers, chunkSizes, body.size(), body,
-                    sequenceNumber.getAndIncrement(), socket);
+            return new RecordedRequest(requestLine, headers, chunkSizes, requestBody.receivedByteCount,
+                    requestBody.buffer, sequenceNumber.getAndIncrement(), socket, recordedConnection,
+                    ingest != null ? ingest.finish() : null, multipart != null ? multipart.finish() : null);
         }
 
         private void writeResponse(Http2Stream stream, MockResponse response) throws IOException {
@@ -886,28 +1683,29 @@ public final class MockWebServer implements Closeable {
             if (response.getSocketPolicy() == NO_RESPONSE) {
                 return;
             }
-            List<Header> http2Headers = new ArrayList<>();
-            String[] statusParts = response.getStatus().split(" ", 3);
-            if (statusParts.length < 2) {
-                throw new AssertionError("Unexpected status: " + response.getStatus());
-            }
-            // TODO: constants for well-known header names.
-            http2Headers.add(new Header(Header.RESPONSE_STATUS, statusParts[1]));
-            Headers headers = response.getHeaders();
-            for (int i = 0, size = headers.size(); i < size; i++) {
-                http2Headers.add(new Header(headers.name(i), headers.value(i)));
-            }
+            writeResponse(stream, response, response.http2Headers());
+        }
 
+        private void writeResponse(Http2Stream stream, MockResponse response, List<Header> http2Headers)
+                throws IOException {
             sleepIfDelayed(response.getHeadersDelay(TimeUnit.MILLISECONDS));
 
-            Buffer body = response.getBody();
-            boolean closeStreamAfterHeaders = body != null || !response.getPushPromises().isEmpty();
+            Buffer body = response.getBodyBuffer();
+            EventStream eventStream = response.getEventStream();
+            boolean closeStreamAfterHeaders = body != null || eventStream != null
+                    || !response.getPushPromises().isEmpty();
             stream.sendResponseHeaders(http2Headers, closeStreamAfterHeaders);
             pushPromises(stream, response.getPushPromises());
-            if (body != null) {
+            if (eventStream != null) {
                 BufferedSink sink = Okio.buffer(stream.getSink());
                 sleepIfDelayed(response.getBodyDelay(TimeUnit.MILLISECONDS));
-                throttledTransfer(response, socket, body, sink, body.size(), false);
+                writeEventStream(eventStream, socket, sink, false);
+                sink.close();
+            } else if (body != null) {
+                BufferedSink sink = Okio.buffer(stream.getSink());
+                sleepIfDelayed(response.getBodyDelay(TimeUnit.MILLISECONDS));
+                throttledTransfer(response, socket, new SharedBodySource(body), sink, body.size(), false,
+                        profile.getResponseFrameSize());
                 sink.close();
             } else if (closeStreamAfterHeaders) {
                 stream.close(ErrorCode.NO_ERROR);
@@ -915,23 +1713,27 @@ public final class MockWebServer implements Closeable {
         }
 
         private void pushPromises(Http2Stream stream, List<PushPromise> promises) throws IOException {
+            if (promises.isEmpty()) return;
+            String authority = getHostName();
             for (PushPromise pushPromise : promises) {
-                List<Header> pushedHeaders = new ArrayList<>();
-                pushedHeaders.add(new Header(Header.TARGET_AUTHORITY, url(pushPromise.path()).host()));
-                pushedHeaders.add(new Header(Header.TARGET_METHOD, pushPromise.method()));
-                pushedHeaders.add(new Header(Header.TARGET_PATH, pushPromise.path()));
-                Headers pushPromiseHeaders = pushPromise.headers();
-                for (int i = 0, size = pushPromiseHeaders.size(); i < size; i++) {
-                    pushedHeaders.add(new Header(pushPromiseHeaders.name(i), pushPromiseHeaders.value(i)));
+                pushCount.incrementAndGet();
+                if (recordPushPromises) {
+                    String requestLine = pushPromise.method() + ' ' + pushPromise.path() + " HTTP/1.1";
+                    List<Integer> chunkSizes = Collections.emptyList(); // No chunked encoding for HTTP/2.
+                    requestQueue.add(new RecordedRequest(requestLine, pushPromise.headers(), chunkSizes, 0,
+                            new Buffer(), sequenceNumber.getAndIncrement(), socket, recordedConnection));
+                }
+                MockResponse pushedResponse = pushPromise.response();
+                boolean hasBody = pushedResponse.getBodyBuffer() != null;
+                Http2Stream pushedStream = stream.getConnection().pushStream(stream.getId(),
+                        pushPromise.requestHeaderBlock(authority), hasBody);
+                Settings settings = pushedResponse.getSettings();
+                if (settings != null) {
+                    stream.getConnection().setSettings(settings);
+                }
+                if (pushedResponse.getSocketPolicy() != NO_RESPONSE) {
+                    writeResponse(pushedStream, pushedResponse, pushPromise.responseHeaderBlock());
                 }
-                String requestLine = pushPromise.method() + ' ' + pushPromise.path() + " HTTP/1.1";
-                List<Integer> chunkSizes = Collections.emptyList(); // No chunked encoding for HTTP/2.
-                requestQueue.add(new RecordedRequest(requestLine, pushPromise.headers(), chunkSizes, 0,
-                        new Buffer(), sequenceNumber.getAndIncrement(), socket));
-                boolean hasBody = pushPromise.response().getBody() != null;
-                Http2Stream pushedStream =
-                        stream.getConnection().pushStream(stream.getId(), pushedHeaders, hasBody);
-                writeResponse(pushedStream, pushPromise.response());
             }
         }
     }
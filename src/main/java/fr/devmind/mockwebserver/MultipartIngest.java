@@ -0,0 +1,254 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okhttp3.Headers;
+import okhttp3.internal.Internal;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits a multipart request body into parts as it is received. Each part's content is measured,
+ * digested and optionally spooled to a file, then discarded, so parts of any size are parsed in
+ * constant memory.
+ *
+ * <p>This is a sink that forwards the raw body to another sink, so it can be put in front of
+ * whatever stores the body.
+ */
+final class MultipartIngest extends ForwardingSink {
+    private static final ByteString CRLF = ByteString.encodeUtf8("\r\n");
+    private static final ByteString DASH_DASH = ByteString.encodeUtf8("--");
+    private static final ByteString HEADERS_END = ByteString.encodeUtf8("\r\n\r\n");
+    private static final long MAX_HEADERS_SIZE = 64 * 1024;
+
+    private enum State {PREAMBLE, DELIMITER_END, HEADERS, CONTENT, EPILOGUE}
+
+    /** The CRLF and dashes that precede the boundary, which also ends the previous part. */
+    private final ByteString delimiter;
+    private final String digestAlgorithm;
+    private final File spoolDirectory;
+    private final List<RecordedPart> parts = new ArrayList<>();
+
+    private final Buffer pending = new Buffer();
+    private final byte[] chunk = new byte[8192];
+    private State state = State.PREAMBLE;
+    private String error;
+
+    private Headers partHeaders;
+    private long partSize;
+    private MessageDigest partDigest;
+    private File partFile;
+    private BufferedSink partSink;
+
+    private MultipartIngest(Sink delegate, String boundary, String digestAlgorithm, File spoolDirectory) {
+        super(delegate);
+        this.delimiter = ByteString.encodeUtf8("\r\n--" + boundary);
+        this.digestAlgorithm = digestAlgorithm;
+        this.spoolDirectory = spoolDirectory;
+        // The first delimiter has no leading CRLF: add one so that all delimiters look the same.
+        pending.write(CRLF);
+    }
+
+    /**
+     * Returns an ingest forwarding to {@code delegate}, or null if {@code contentType} isn't a
+     * multipart type with a boundary.
+     */
+    static MultipartIngest create(Sink delegate, String contentType, String digestAlgorithm,
+                                  File spoolDirectory) {
+        if (contentType == null || !contentType.toLowerCase(Locale.US).startsWith("multipart/")) return null;
+        for (String parameter : contentType.split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals == -1 || !parameter.substring(0, equals).trim().equalsIgnoreCase("boundary")) continue;
+            String boundary = parameter.substring(equals + 1).trim();
+            if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            if (boundary.isEmpty()) return null;
+            return new MultipartIngest(delegate, boundary, digestAlgorithm, spoolDirectory);
+        }
+        return null;
+    }
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+        if (error == null && state != State.EPILOGUE) {
+            // Share the segments to parse rather than copying the bytes.
+            source.copyTo(pending, 0, byteCount);
+            try {
+                parse();
+            } catch (IOException e) {
+                fail(e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+        }
+        super.write(source, byteCount);
+    }
+
+    private void parse() throws IOException {
+        while (error == null) {
+            switch (state) {
+                case PREAMBLE: {
+                    long index = pending.indexOf(delimiter);
+                    if (index == -1) {
+                        pending.skip(Math.max(0, pending.size() - delimiter.size() + 1));
+                        return;
+                    }
+                    pending.skip(index + delimiter.size());
+                    state = State.DELIMITER_END;
+                    break;
+                }
+                case DELIMITER_END: {
+                    if (pending.size() < 2) return;
+                    if (pending.rangeEquals(0, DASH_DASH)) {
+                        pending.clear();
+                        state = State.EPILOGUE;
+                        return;
+                    }
+                    // Skip the transport padding up to the end of the delimiter line.
+                    long lineEnd = pending.indexOf(CRLF);
+                    if (lineEnd == -1) {
+                        if (pending.size() > MAX_HEADERS_SIZE) fail("malformed multipart delimiter");
+                        return;
+                    }
+                    pending.skip(lineEnd + CRLF.size());
+                    state = State.HEADERS;
+                    break;
+                }
+                case HEADERS: {
+                    long headersEnd;
+                    if (pending.rangeEquals(0, CRLF)) {
+                        headersEnd = 0; // No headers.
+                    } else {
+                        headersEnd = pending.indexOf(HEADERS_END);
+                        if (headersEnd == -1) {
+                            if (pending.size() > MAX_HEADERS_SIZE) fail("multipart headers too large");
+                            return;
+                        }
+                        headersEnd += CRLF.size();
+                    }
+                    Headers.Builder headers = new Headers.Builder();
+                    for (String line : pending.readUtf8(headersEnd).split("\r\n")) {
+                        if (!line.isEmpty()) Internal.instance.addLenient(headers, line);
+                    }
+                    pending.skip(CRLF.size());
+                    startPart(headers.build());
+                    state = State.CONTENT;
+                    break;
+                }
+                case CONTENT: {
+                    long index = pending.indexOf(delimiter);
+                    if (index == -1) {
+                        // Keep what could be the start of a delimiter split across writes.
+                        consume(Math.max(0, pending.size() - delimiter.size() + 1));
+                        return;
+                    }
+                    consume(index);
+                    pending.skip(delimiter.size());
+                    endPart();
+                    state = State.DELIMITER_END;
+                    break;
+                }
+                default:
+                    return;
+            }
+        }
+    }
+
+    private void startPart(Headers headers) throws IOException {
+        partHeaders = headers;
+        partSize = 0;
+        if (digestAlgorithm != null) {
+            try {
+                partDigest = MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (spoolDirectory != null) {
+            if (!spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+                throw new IOException("failed to create " + spoolDirectory);
+            }
+            partFile = File.createTempFile("part", ".bin", spoolDirectory);
+            partSink = Okio.buffer(Okio.sink(partFile));
+        }
+    }
+
+    /** Reads {@code byteCount} bytes of the current part's content from {@link #pending}. */
+    private void consume(long byteCount) throws IOException {
+        while (byteCount > 0) {
+            int count = pending.read(chunk, 0, (int) Math.min(chunk.length, byteCount));
+            partSize += count;
+            if (partDigest != null) partDigest.update(chunk, 0, count);
+            if (partSink != null) partSink.write(chunk, 0, count);
+            byteCount -= count;
+        }
+    }
+
+    private void endPart() throws IOException {
+        if (partSink != null) {
+            partSink.close();
+            partSink = null;
+        }
+        ByteString digest = partDigest != null ? ByteString.of(partDigest.digest()) : null;
+        parts.add(new RecordedPart(partHeaders, partSize, digest, partFile));
+        partDigest = null;
+        partFile = null;
+    }
+
+    private void fail(String message) {
+        error = message;
+        pending.clear();
+        if (partSink != null) {
+            try {
+                partSink.close();
+            } catch (IOException ignored) {
+            }
+            partSink = null;
+        }
+        if (partFile != null) {
+            partFile.delete();
+            partFile = null;
+        }
+    }
+
+    /** Ends parsing once the whole body was written. */
+    MultipartIngest finish() {
+        if (error == null && state != State.EPILOGUE) {
+            fail("truncated multipart body");
+        }
+        return this;
+    }
+
+    /** Returns the parts that were completely received. */
+    List<RecordedPart> parts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    /** Returns why the body couldn't be parsed, or null if it could. */
+    String error() {
+        return error;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okhttp3.internal.http.HttpDate;
+
+import java.util.Date;
+
+/**
+ * Evaluates the preconditions of conditional requests, as specified by <a
+ * href="https://tools.ietf.org/html/rfc7232">RFC 7232</a>.
+ */
+final class Preconditions {
+    private Preconditions() {
+    }
+
+    /**
+     * Returns true if {@code request} already has the representation of {@code response}, so
+     * that it can be answered with {@code 304 Not Modified}.
+     */
+    static boolean isNotModified(RecordedRequest request, MockResponse response) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) return false;
+        if (!response.getStatus().split(" ", 3)[1].equals("200")) return false;
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present.
+            return matches(ifNoneMatch, response.getHeaders().get("ETag"));
+        }
+
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        String lastModified = response.getHeaders().get("Last-Modified");
+        if (ifModifiedSince == null || lastModified == null) return false;
+        Date since = HttpDate.parse(ifModifiedSince);
+        Date modified = HttpDate.parse(lastModified);
+        return since != null && modified != null && !modified.after(since);
+    }
+
+    /**
+     * Returns true if the entity tag list {@code ifNoneMatch} matches {@code etag} with the weak
+     * comparison function.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*")) return etag != null;
+        if (etag == null) return false;
+        String opaqueTag = opaqueTag(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            if (opaqueTag(candidate).equals(opaqueTag)) return true;
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        String result = etag.trim();
+        return result.startsWith("W/") ? result.substring(2) : result;
+    }
+}
@@ -16,13 +16,26 @@
 package fr.devmind.mockwebserver;
 
 import okhttp3.Headers;
+import okhttp3.internal.http2.Header;
 
-/** An HTTP request initiated by the server. */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An HTTP request initiated by the server.
+ *
+ * <p>The HTTP/2 header blocks of a promise are built the first time it is pushed and shared by all
+ * later pushes, so a promise can be pushed on any number of streams at little cost. Don't change
+ * its response once it has been pushed.
+ */
 public final class PushPromise {
   private final String method;
   private final String path;
   private final Headers headers;
   private final MockResponse response;
+  private volatile List<Header> requestHeaderBlock;
+  private volatile List<Header> responseHeaderBlock;
 
   public PushPromise(String method, String path, Headers headers, MockResponse response) {
     this.method = method;
@@ -46,4 +59,31 @@ public final class PushPromise {
   public MockResponse response() {
     return response;
   }
+
+  /** Returns the pseudo and regular headers of the PUSH_PROMISE frame. */
+  List<Header> requestHeaderBlock(String authority) {
+    List<Header> result = requestHeaderBlock;
+    if (result == null || !result.get(0).value.utf8().equals(authority)) {
+      result = new ArrayList<>();
+      result.add(new Header(Header.TARGET_AUTHORITY, authority));
+      result.add(new Header(Header.TARGET_METHOD, method));
+      result.add(new Header(Header.TARGET_PATH, path));
+      for (int i = 0, size = headers.size(); i < size; i++) {
+        result.add(new Header(headers.name(i), headers.value(i)));
+      }
+      result = Collections.unmodifiableList(result);
+      requestHeaderBlock = result;
+    }
+    return result;
+  }
+
+  /** Returns the headers of the pushed response, including its status. */
+  List<Header> responseHeaderBlock() {
+    List<Header> result = responseHeaderBlock;
+    if (result == null) {
+      result = Collections.unmodifiableList(response.http2Headers());
+      responseHeaderBlock = result;
+    }
+    return result;
+  }
 }
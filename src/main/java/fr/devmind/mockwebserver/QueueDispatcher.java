@@ -16,24 +16,39 @@
 package fr.devmind.mockwebserver;
 
 import java.net.HttpURLConnection;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
  * Default dispatcher that processes a script of responses. Populate the script by calling {@link
  * #enqueueResponse(MockResponse)}.
+ *
+ * <p>A script entry can also stand for many responses: a response repeated some number of times,
+ * a cycle of responses, or responses rotated by weight. Such entries take the same memory whatever
+ * the number of responses they stand for, and their responses are {@linkplain MockResponse#freeze()
+ * frozen} once, then served without copies.
  */
 public class QueueDispatcher extends Dispatcher {
+  /** Repeats an entry for as long as the dispatcher runs. */
+  public static final long FOREVER = Long.MAX_VALUE;
+
   /**
    * Enqueued on shutdown to release threads waiting on {@link #dispatch}. Note that this response
    * isn't transmitted because the connection is closed before this response is returned.
    */
   private static final MockResponse DEAD_LETTER = new MockResponse()
-      .setStatus("HTTP/1.1 " + 503 + " shutting down");
+      .setStatus("HTTP/1.1 " + 503 + " shutting down")
+      .freeze();
 
   private static final Logger logger = Logger.getLogger(QueueDispatcher.class.getName());
-  protected final BlockingQueue<MockResponse> responseQueue = new LinkedBlockingQueue<>();
+  /** Script entries, guarded by itself. */
+  private final Deque<Entry> responseQueue = new ArrayDeque<>();
   private MockResponse failFastResponse;
 
   @Override
@@ -45,40 +60,98 @@ public class QueueDispatcher extends Dispatcher {
       return new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_FOUND);
     }
 
-    if (failFastResponse != null && responseQueue.peek() == null) {
-      // Fail fast if there's no response queued up.
-      return failFastResponse;
-    }
-
-    MockResponse result = responseQueue.take();
+    synchronized (responseQueue) {
+      if (failFastResponse != null && responseQueue.isEmpty()) {
+        // Fail fast if there's no response queued up.
+        return failFastResponse;
+      }
 
-    // If take() returned because we're shutting down, then enqueue another dead letter so that any
-    // other threads waiting on take() will also return.
-    if (result == DEAD_LETTER) responseQueue.add(DEAD_LETTER);
-
-    return result;
+      while (responseQueue.isEmpty()) {
+        responseQueue.wait();
+      }
+      Entry entry = responseQueue.peekFirst();
+      MockResponse result = entry.next();
+      if (entry.exhausted()) responseQueue.removeFirst();
+      return result;
+    }
   }
 
   @Override
   public MockResponse peek() {
-    MockResponse peek = responseQueue.peek();
-    if (peek != null) return peek;
+    synchronized (responseQueue) {
+      Entry entry = responseQueue.peekFirst();
+      if (entry != null) return entry.peek();
+    }
     if (failFastResponse != null) return failFastResponse;
     return super.peek();
   }
 
   public void enqueueResponse(MockResponse response) {
-    responseQueue.add(response);
+    enqueue(new Repeat(response, 1));
+  }
+
+  /**
+   * Scripts {@code response} to answer the next {@code times} requests, or all the next requests if
+   * {@code times} is {@link #FOREVER}.
+   */
+  public void enqueueResponse(MockResponse response, long times) {
+    if (times < 1) throw new IllegalArgumentException("times < 1: " + times);
+    enqueue(new Repeat(response.freeze(), times));
+  }
+
+  /**
+   * Scripts {@code responses} to answer the next requests in turn, {@code cycles} times over, or
+   * for as long as the dispatcher runs if {@code cycles} is {@link #FOREVER}.
+   */
+  public void enqueueCycle(List<MockResponse> responses, long cycles) {
+    if (responses.isEmpty()) throw new IllegalArgumentException("responses is empty");
+    if (cycles < 1) throw new IllegalArgumentException("cycles < 1: " + cycles);
+    List<MockResponse> frozen = new ArrayList<>(responses.size());
+    for (MockResponse response : responses) {
+      frozen.add(response.freeze());
+    }
+    enqueue(new Cycle(frozen, cycles));
+  }
+
+  /**
+   * Scripts the keys of {@code weights} to answer the next {@code times} requests, or all the next
+   * requests if {@code times} is {@link #FOREVER}. Each response answers a share of the requests
+   * proportional to its weight, and responses are interleaved as evenly as possible: weights of
+   * 5, 1 and 1 answer with {@code a a b a c a a}.
+   *
+   * <p>Weights are taken in the iteration order of {@code weights}, and ties go to the response
+   * that comes first: weights of 1 and 1 answer with {@code a b a b}. Use a map with a predictable
+   * order, like a {@link LinkedHashMap}.
+   */
+  public void enqueueWeighted(Map<MockResponse, Integer> weights, long times) {
+    if (weights.isEmpty()) throw new IllegalArgumentException("weights is empty");
+    if (times < 1) throw new IllegalArgumentException("times < 1: " + times);
+    List<MockResponse> responses = new ArrayList<>(weights.size());
+    int[] weightArray = new int[weights.size()];
+    for (Map.Entry<MockResponse, Integer> weight : weights.entrySet()) {
+      if (weight.getValue() < 1) throw new IllegalArgumentException("weight < 1: " + weight.getValue());
+      weightArray[responses.size()] = weight.getValue();
+      responses.add(weight.getKey().freeze());
+    }
+    enqueue(new Weighted(responses, weightArray, times));
+  }
+
+  private void enqueue(Entry entry) {
+    synchronized (responseQueue) {
+      responseQueue.addLast(entry);
+      responseQueue.notifyAll();
+    }
   }
 
   @Override
   public void shutdown() {
-    responseQueue.add(DEAD_LETTER);
+    // Release all the threads waiting now and later.
+    enqueue(new Repeat(DEAD_LETTER, FOREVER));
   }
 
   public void setFailFast(boolean failFast) {
     MockResponse failFastResponse = failFast
-        ? new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_FOUND)
+        ? new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_FOUND).freeze()
         : null;
     setFailFast(failFastResponse);
   }
@@ -86,4 +159,117 @@ public class QueueDispatcher extends Dispatcher {
   public void setFailFast(MockResponse failFastResponse) {
     this.failFastResponse = failFastResponse;
   }
+
+  /** An entry of the script, standing for one or more responses. */
+  private abstract static class Entry {
+    /** Returns the response that {@link #next()} will return, without consuming it. */
+    abstract MockResponse peek();
+
+    /** Consumes and returns the next response. */
+    abstract MockResponse next();
+
+    /** Returns true once all the responses of this entry are consumed. */
+    abstract boolean exhausted();
+  }
+
+  private static final class Repeat extends Entry {
+    private final MockResponse response;
+    private long remaining;
+
+    Repeat(MockResponse response, long times) {
+      this.response = response;
+      this.remaining = times;
+    }
+
+    @Override MockResponse peek() {
+      return response;
+    }
+
+    @Override MockResponse next() {
+      if (remaining != FOREVER) remaining--;
+      return response;
+    }
+
+    @Override boolean exhausted() {
+      return remaining == 0;
+    }
+  }
+
+  private static final class Cycle extends Entry {
+    private final List<MockResponse> responses;
+    private long remainingCycles;
+    private int index;
+
+    Cycle(List<MockResponse> responses, long cycles) {
+      this.responses = Collections.unmodifiableList(responses);
+      this.remainingCycles = cycles;
+    }
+
+    @Override MockResponse peek() {
+      return responses.get(index);
+    }
+
+    @Override MockResponse next() {
+      MockResponse result = responses.get(index);
+      if (++index == responses.size()) {
+        index = 0;
+        if (remainingCycles != FOREVER) remainingCycles--;
+      }
+      return result;
+    }
+
+    @Override boolean exhausted() {
+      return remainingCycles == 0;
+    }
+  }
+
+  /**
+   * Rotates responses with the smooth weighted round-robin algorithm: each turn, every response
+   * gains its weight and the response with the most is chosen, then loses the total weight.
+   */
+  private static final class Weighted extends Entry {
+    private final List<MockResponse> responses;
+    private final int[] weights;
+    private final long[] current;
+    private final long totalWeight;
+    private long remaining;
+    private int chosen;
+
+    Weighted(List<MockResponse> responses, int[] weights, long times) {
+      this.responses = responses;
+      this.weights = weights;
+      this.current = new long[weights.length];
+      long total = 0;
+      for (int weight : weights) {
+        total += weight;
+      }
+      this.totalWeight = total;
+      this.remaining = times;
+      choose();
+    }
+
+    private void choose() {
+      chosen = 0;
+      for (int i = 0; i < weights.length; i++) {
+        current[i] += weights[i];
+        if (current[i] > current[chosen]) chosen = i;
+      }
+      current[chosen] -= totalWeight;
+    }
+
+    @Override MockResponse peek() {
+      return responses.get(chosen);
+    }
+
+    @Override MockResponse next() {
+      MockResponse result = responses.get(chosen);
+      if (remaining != FOREVER) remaining--;
+      choose();
+      return result;
+    }
+
+    @Override boolean exhausted() {
+      return remaining == 0;
+    }
+  }
 }
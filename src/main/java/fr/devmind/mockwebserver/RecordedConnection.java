@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okhttp3.Protocol;
+import okhttp3.TlsVersion;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.net.Socket;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connection that carried a {@link RecordedRequest}. Its TLS details are captured once, when
+ * the handshake completes, and shared by all the requests of the connection.
+ */
+public final class RecordedConnection {
+  private final Protocol protocol;
+  private final TlsVersion tlsVersion;
+  private final String cipherSuite;
+  private final List<Certificate> peerCertificates;
+  private final Principal peerPrincipal;
+  private final long handshakeNanos;
+
+  private RecordedConnection(Protocol protocol, TlsVersion tlsVersion, String cipherSuite,
+      List<Certificate> peerCertificates, Principal peerPrincipal, long handshakeNanos) {
+    this.protocol = protocol;
+    this.tlsVersion = tlsVersion;
+    this.cipherSuite = cipherSuite;
+    this.peerCertificates = peerCertificates;
+    this.peerPrincipal = peerPrincipal;
+    this.handshakeNanos = handshakeNanos;
+  }
+
+  /** Returns a connection without TLS. */
+  static RecordedConnection plaintext(Protocol protocol) {
+    return new RecordedConnection(protocol, null, null, Collections.<Certificate>emptyList(), null, 0);
+  }
+
+  /** Captures the TLS session of {@code socket} if it has one. */
+  static RecordedConnection of(Socket socket, Protocol protocol, long handshakeNanos) {
+    if (!(socket instanceof SSLSocket)) return plaintext(protocol);
+
+    SSLSession session = ((SSLSocket) socket).getSession();
+    TlsVersion tlsVersion;
+    try {
+      tlsVersion = TlsVersion.forJavaName(session.getProtocol());
+    } catch (IllegalArgumentException unknownToOkHttp) {
+      tlsVersion = null;
+    }
+    List<Certificate> peerCertificates;
+    Principal peerPrincipal;
+    try {
+      peerCertificates = Collections.unmodifiableList(Arrays.asList(session.getPeerCertificates()));
+      peerPrincipal = session.getPeerPrincipal();
+    } catch (SSLPeerUnverifiedException noClientCertificate) {
+      peerCertificates = Collections.emptyList();
+      peerPrincipal = null;
+    }
+    return new RecordedConnection(protocol, tlsVersion, session.getCipherSuite(), peerCertificates,
+        peerPrincipal, handshakeNanos);
+  }
+
+  /** Returns the protocol of the connection, as negotiated by ALPN for HTTPS connections. */
+  public Protocol getProtocol() {
+    return protocol;
+  }
+
+  /**
+   * Returns the connection's TLS version, or null if the connection doesn't use TLS or uses a
+   * version that OkHttp doesn't know.
+   */
+  public TlsVersion getTlsVersion() {
+    return tlsVersion;
+  }
+
+  /** Returns the Java name of the negotiated cipher suite, or null without TLS. */
+  public String getCipherSuite() {
+    return cipherSuite;
+  }
+
+  /**
+   * Returns the client's certificate chain, starting with its own certificate, or an empty list if
+   * it didn't present one.
+   */
+  public List<Certificate> getPeerCertificates() {
+    return peerCertificates;
+  }
+
+  /** Returns the subject of the client's certificate, or null if it didn't present one. */
+  public Principal getPeerPrincipal() {
+    return peerPrincipal;
+  }
+
+  /** Returns how long the TLS handshake took, or 0 without TLS. */
+  public long getHandshakeDuration(TimeUnit unit) {
+    return unit.convert(handshakeNanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return cipherSuite != null ? protocol + " " + tlsVersion + " " + cipherSuite : protocol.toString();
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okhttp3.Headers;
+import okio.ByteString;
+
+import java.io.File;
+
+/**
+ * A part of a multipart request body, as parsed while the body was received. Its content isn't
+ * kept in memory: only its size, its digest and, if the server spools parts, a file holding it.
+ */
+public final class RecordedPart {
+  private final Headers headers;
+  private final long size;
+  private final ByteString digest;
+  private final File file;
+
+  RecordedPart(Headers headers, long size, ByteString digest, File file) {
+    this.headers = headers;
+    this.size = size;
+    this.digest = digest;
+    this.file = file;
+  }
+
+  /** Returns the headers of this part, like {@code Content-Disposition} and {@code Content-Type}. */
+  public Headers getHeaders() {
+    return headers;
+  }
+
+  /** Returns the first header named {@code name}, or null if no such header exists. */
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  /** Returns the {@code name} parameter of the part's {@code Content-Disposition}, or null. */
+  public String getName() {
+    return dispositionParameter("name");
+  }
+
+  /** Returns the {@code filename} parameter of the part's {@code Content-Disposition}, or null. */
+  public String getFilename() {
+    return dispositionParameter("filename");
+  }
+
+  /** Returns the size of the part's content in bytes. */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the digest of the part's content, or null if the server doesn't {@linkplain
+   * MockWebServer#setRequestBodyDigestAlgorithm digest} bodies.
+   */
+  public ByteString getDigest() {
+    return digest;
+  }
+
+  /**
+   * Returns the file holding the part's content, or null if the server doesn't {@linkplain
+   * MockWebServer#setMultipartSpoolDirectory spool} parts. Tests should delete it when done.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  private String dispositionParameter(String name) {
+    String disposition = headers.get("Content-Disposition");
+    if (disposition == null) return null;
+    for (String parameter : disposition.split(";")) {
+      int equals = parameter.indexOf('=');
+      if (equals == -1 || !parameter.substring(0, equals).trim().equalsIgnoreCase(name)) continue;
+      String value = parameter.substring(equals + 1).trim();
+      if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+        value = value.substring(1, value.length() - 1);
+      }
+      return value;
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "RecordedPart{name=" + getName() + ", size=" + size + "}";
+  }
+}
@@ -18,11 +18,14 @@ package fr.devmind.mockwebserver;
 
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
+import okhttp3.Protocol;
 import okhttp3.TlsVersion;
 import okio.Buffer;
+import okio.ByteString;
 
 import javax.net.ssl.SSLSocket;
 import java.net.Socket;
+import java.util.Collections;
 import java.util.List;
 
 /** An HTTP request that came into the mock web server. */
@@ -35,20 +38,41 @@ public final class RecordedRequest {
   private final long bodySize;
   private final Buffer body;
   private final int sequenceNumber;
-  private final TlsVersion tlsVersion;
+  private final RecordedConnection connection;
+  private final long decodedBodySize;
+  private final ByteString bodyDigest;
+  private final String bodyDecodingError;
+  private final List<RecordedPart> parts;
+  private final String multipartError;
   private final HttpUrl requestUrl;
 
   public RecordedRequest(String requestLine, Headers headers, List<Integer> chunkSizes,
                          long bodySize, Buffer body, int sequenceNumber, Socket socket) {
+    this(requestLine, headers, chunkSizes, bodySize, body, sequenceNumber, socket,
+        RecordedConnection.of(socket, Protocol.HTTP_1_1, 0));
+  }
+
+  RecordedRequest(String requestLine, Headers headers, List<Integer> chunkSizes, long bodySize,
+      Buffer body, int sequenceNumber, Socket socket, RecordedConnection connection) {
+    this(requestLine, headers, chunkSizes, bodySize, body, sequenceNumber, socket, connection, null,
+        null);
+  }
+
+  RecordedRequest(String requestLine, Headers headers, List<Integer> chunkSizes, long bodySize,
+      Buffer body, int sequenceNumber, Socket socket, RecordedConnection connection,
+      RequestBodyIngest ingest, MultipartIngest multipart) {
     this.requestLine = requestLine;
     this.headers = headers;
     this.chunkSizes = chunkSizes;
     this.bodySize = bodySize;
     this.body = body;
     this.sequenceNumber = sequenceNumber;
-    this.tlsVersion = socket instanceof SSLSocket
-        ? TlsVersion.forJavaName(((SSLSocket) socket).getSession().getProtocol())
-        : null;
+    this.connection = connection;
+    this.decodedBodySize = ingest != null ? ingest.decodedSize() : -1;
+    this.bodyDigest = ingest != null ? ingest.digest() : null;
+    this.bodyDecodingError = ingest != null ? ingest.decodingError() : null;
+    this.parts = multipart != null ? multipart.parts() : Collections.<RecordedPart>emptyList();
+    this.multipartError = multipart != null ? multipart.error() : null;
 
     if (requestLine != null) {
       int methodEnd = requestLine.indexOf(' ');
@@ -114,6 +138,43 @@ public final class RecordedRequest {
     return body;
   }
 
+  /**
+   * Returns the size of the body once decoded according to its {@code Content-Encoding}, or -1 if
+   * the server wasn't {@linkplain MockWebServer#setDecodeRequestBodies configured} to inspect
+   * bodies.
+   */
+  public long getDecodedBodySize() {
+    return decodedBodySize;
+  }
+
+  /**
+   * Returns the digest of the body, decoded if the server was {@linkplain
+   * MockWebServer#setDecodeRequestBodies configured} to, or null if the server doesn't {@linkplain
+   * MockWebServer#setRequestBodyDigestAlgorithm digest} bodies. Unlike {@link #getBody()} this
+   * covers the whole body, however large.
+   */
+  public ByteString getBodyDigest() {
+    return bodyDigest;
+  }
+
+  /** Returns why the body couldn't be decoded, or null if it could or wasn't decoded. */
+  public String getBodyDecodingError() {
+    return bodyDecodingError;
+  }
+
+  /**
+   * Returns the parts of this multipart request, or an empty list if the body isn't multipart or
+   * the server doesn't {@linkplain MockWebServer#setParseMultipartBodies parse} multipart bodies.
+   */
+  public List<RecordedPart> getParts() {
+    return parts;
+  }
+
+  /** Returns why the multipart body couldn't be parsed, or null if it could or wasn't parsed. */
+  public String getMultipartError() {
+    return multipartError;
+  }
+
   /** @deprecated Use {@link #getBody() getBody().readUtf8()}. */
   public String getUtf8Body() {
     return getBody().readUtf8();
@@ -129,7 +190,15 @@ public final class RecordedRequest {
 
   /** Returns the connection's TLS version or null if the connection doesn't use SSL. */
   public TlsVersion getTlsVersion() {
-    return tlsVersion;
+    return connection.getTlsVersion();
+  }
+
+  /**
+   * Returns the connection that carried this request, with its negotiated protocol, cipher suite
+   * and client certificates.
+   */
+  public RecordedConnection getConnection() {
+    return connection;
   }
 
   @Override
@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okio.Buffer;
+import okio.ByteString;
+import okio.ForwardingSink;
+import okio.Sink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inspects a request body as it is received: inflates it if it is compressed, then digests and
+ * measures the decoded bytes. Decoded bytes are discarded as soon as they are inspected.
+ *
+ * <p>This is a sink that forwards the raw body to another sink, so it can be put in front of
+ * whatever stores the body.
+ */
+final class RequestBodyIngest extends ForwardingSink {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final String contentEncoding;
+    private final MessageDigest digest;
+    private final Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[8192];
+    private final byte[] decoded = new byte[8192];
+
+    /** Gzip header or trailer bytes received but not parsed yet. */
+    private final Buffer pending = new Buffer();
+    private boolean headerRead;
+    private boolean trailerRead;
+
+    private long receivedSize;
+    private long decodedSize;
+    private ByteString digestValue;
+    private String decodingError;
+
+    private RequestBodyIngest(Sink delegate, String contentEncoding, MessageDigest digest) {
+        super(delegate);
+        this.contentEncoding = contentEncoding;
+        this.digest = digest;
+        if (ContentEncoding.GZIP.equals(contentEncoding)) {
+            this.inflater = new Inflater(true);
+        } else if (ContentEncoding.DEFLATE.equals(contentEncoding)) {
+            this.inflater = new Inflater();
+            this.headerRead = true;
+        } else {
+            this.inflater = null;
+        }
+    }
+
+    /**
+     * Returns an ingest forwarding to {@code delegate}, or null if there is nothing to inspect.
+     *
+     * @param contentEncoding the request's {@code Content-Encoding} header, or null.
+     * @param decode true to inflate gzip and deflate bodies before inspecting them.
+     * @param digestAlgorithm the algorithm to digest the body with, or null.
+     */
+    static RequestBodyIngest create(Sink delegate, String contentEncoding, boolean decode,
+                                    String digestAlgorithm) {
+        if (!decode && digestAlgorithm == null) return null;
+        MessageDigest digest = null;
+        if (digestAlgorithm != null) {
+            try {
+                digest = MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        String coding = decode && contentEncoding != null
+                ? contentEncoding.trim().toLowerCase(Locale.US)
+                : null;
+        if ("x-gzip".equals(coding)) coding = ContentEncoding.GZIP;
+        return new RequestBodyIngest(delegate, coding, digest);
+    }
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+        // Share the segments to inspect rather than copying the bytes.
+        Buffer copy = new Buffer();
+        source.copyTo(copy, 0, byteCount);
+        super.write(source, byteCount);
+        receivedSize += byteCount;
+
+        if (decodingError != null) return;
+        boolean inspected = false;
+        try {
+            if (inflater != null) {
+                inflate(copy);
+            } else {
+                while (!copy.exhausted()) {
+                    int count = copy.read(chunk, 0, chunk.length);
+                    inspect(chunk, count);
+                }
+            }
+            inspected = true;
+        } catch (DataFormatException | ProtocolError e) {
+            decodingError = e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            // Release zlib's native memory as soon as the body can't be inflated further.
+            if (!inspected && inflater != null) inflater.end();
+        }
+    }
+
+    private void inflate(Buffer input) throws DataFormatException, ProtocolError {
+        if (!headerRead) {
+            pending.write(input, input.size());
+            if (!readGzipHeader()) return;
+            input = pending.clone();
+            pending.clear();
+            headerRead = true;
+        }
+        if (inflater.finished()) {
+            readGzipTrailer(input);
+            return;
+        }
+        while (!input.exhausted()) {
+            int count = input.read(chunk, 0, chunk.length);
+            inflater.setInput(chunk, 0, count);
+            while (true) {
+                int inflated = inflater.inflate(decoded);
+                if (inflated > 0) {
+                    inspect(decoded, inflated);
+                    continue;
+                }
+                if (inflater.finished()) {
+                    Buffer rest = new Buffer();
+                    int remaining = inflater.getRemaining();
+                    rest.write(chunk, count - remaining, remaining);
+                    rest.write(input, input.size());
+                    readGzipTrailer(rest);
+                    return;
+                }
+                if (inflater.needsInput()) break;
+                if (inflater.needsDictionary()) throw new ProtocolError("preset dictionaries aren't supported");
+            }
+        }
+    }
+
+    /**
+     * Consumes the gzip header from {@link #pending}. Returns false if more bytes are needed.
+     */
+    private boolean readGzipHeader() throws ProtocolError {
+        Buffer header = pending.clone();
+        if (header.size() < 10) return false;
+        if (header.readShort() != (short) 0x1f8b) throw new ProtocolError("not in gzip format");
+        if (header.readByte() != 8) throw new ProtocolError("unsupported gzip compression method");
+        int flags = header.readByte() & 0xff;
+        try {
+            header.skip(6); // Modification time, extra flags and OS.
+            if ((flags & FEXTRA) != 0) {
+                if (header.size() < 2) return false;
+                header.skip(header.readShortLe() & 0xffff);
+            }
+            if ((flags & FNAME) != 0) header.skip(indexOfZero(header) + 1);
+            if ((flags & FCOMMENT) != 0) header.skip(indexOfZero(header) + 1);
+            if ((flags & FHCRC) != 0) header.skip(2);
+            pending.skip(pending.size() - header.size());
+        } catch (EOFException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private static long indexOfZero(Buffer buffer) throws EOFException {
+        long index = buffer.indexOf((byte) 0);
+        if (index == -1) throw new EOFException();
+        return index;
+    }
+
+    private void readGzipTrailer(Buffer input) throws ProtocolError {
+        if (!ContentEncoding.GZIP.equals(contentEncoding) || trailerRead) return;
+        pending.write(input, input.size());
+        if (pending.size() < 8) return;
+        trailerRead = true;
+        if (pending.readIntLe() != (int) crc.getValue()) throw new ProtocolError("gzip CRC mismatch");
+        if (pending.readIntLe() != (int) decodedSize) throw new ProtocolError("gzip size mismatch");
+        pending.clear();
+    }
+
+    private void inspect(byte[] bytes, int count) {
+        decodedSize += count;
+        if (digest != null) digest.update(bytes, 0, count);
+        if (ContentEncoding.GZIP.equals(contentEncoding)) crc.update(bytes, 0, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (inflater != null) inflater.end();
+    }
+
+    /** Ends inspection once the whole body was written. */
+    RequestBodyIngest finish() {
+        if (inflater != null) {
+            boolean complete = receivedSize == 0 || (headerRead && inflater.finished()
+                    && (trailerRead || !ContentEncoding.GZIP.equals(contentEncoding)));
+            if (decodingError == null && !complete) {
+                decodingError = "truncated " + contentEncoding + " body";
+            }
+            inflater.end();
+        }
+        if (digest != null) digestValue = ByteString.of(digest.digest());
+        return this;
+    }
+
+    /**
+     * Returns the number of decoded bytes, which is the body size if it isn't compressed.
+     */
+    long decodedSize() {
+        return decodedSize;
+    }
+
+    /** Returns the digest of the decoded bytes, or null if they weren't digested. */
+    ByteString digest() {
+        return digestValue;
+    }
+
+    /** Returns why the body couldn't be decoded, or null if it could. */
+    String decodingError() {
+        return decodingError;
+    }
+
+    private static final class ProtocolError extends Exception {
+        ProtocolError(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP options applied by the mock web server to its listening socket and to every accepted
+ * connection. Options that are left unset keep the platform defaults.
+ */
+public final class SocketOptions {
+    private Boolean tcpNoDelay;
+    private Boolean keepAlive;
+    private int sendBufferSize = -1;
+    private int receiveBufferSize = -1;
+    private int soLinger = -1;
+    private int backlog = 50;
+    private long idleTimeoutMillis = 0;
+
+    /**
+     * Enables or disables Nagle's algorithm on accepted connections.
+     */
+    public SocketOptions setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Enables or disables {@code SO_KEEPALIVE} probes on accepted connections.
+     */
+    public SocketOptions setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public Boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Sets {@code SO_SNDBUF} on accepted connections.
+     */
+    public SocketOptions setSendBufferSize(int sendBufferSize) {
+        if (sendBufferSize <= 0) throw new IllegalArgumentException("sendBufferSize <= 0");
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Sets {@code SO_RCVBUF}. This is set on the listening socket before it is bound so that windows
+     * larger than 64 KiB can be negotiated, and on every accepted connection.
+     */
+    public SocketOptions setReceiveBufferSize(int receiveBufferSize) {
+        if (receiveBufferSize <= 0) throw new IllegalArgumentException("receiveBufferSize <= 0");
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Enables {@code SO_LINGER} with the given timeout on accepted connections. A linger of 0 makes
+     * close() reset the connection instead of going through {@code TIME_WAIT}.
+     */
+    public SocketOptions setSoLinger(int seconds) {
+        if (seconds < 0) throw new IllegalArgumentException("seconds < 0");
+        this.soLinger = seconds;
+        return this;
+    }
+
+    public int getSoLinger() {
+        return soLinger;
+    }
+
+    /**
+     * Sets the maximum queue length of pending connections on the listening socket. Defaults to 50.
+     */
+    public SocketOptions setBacklog(int backlog) {
+        if (backlog <= 0) throw new IllegalArgumentException("backlog <= 0");
+        this.backlog = backlog;
+        return this;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Closes connections that don't send anything for {@code timeout}. This reaps keep-alive
+     * connections abandoned by clients so they stop holding a server thread and a file descriptor.
+     * The timeout also applies while a request body is being received. Web socket connections are
+     * exempt. Use 0 to keep idle connections open forever, which is the default.
+     */
+    public SocketOptions setIdleTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+        long millis = unit.toMillis(timeout);
+        if (millis > Integer.MAX_VALUE) throw new IllegalArgumentException("timeout too large");
+        if (millis == 0 && timeout > 0) millis = 1;
+        this.idleTimeoutMillis = millis;
+        return this;
+    }
+
+    public long getIdleTimeout(TimeUnit unit) {
+        return unit.convert(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the options that must be set on the listening socket before it is bound.
+     */
+    void applyBeforeBind(ServerSocket serverSocket) throws SocketException {
+        if (receiveBufferSize != -1) serverSocket.setReceiveBufferSize(receiveBufferSize);
+    }
+
+    /**
+     * Applies the options of an accepted connection.
+     */
+    void apply(Socket socket) throws SocketException {
+        if (tcpNoDelay != null) socket.setTcpNoDelay(tcpNoDelay);
+        if (keepAlive != null) socket.setKeepAlive(keepAlive);
+        if (sendBufferSize != -1) socket.setSendBufferSize(sendBufferSize);
+        if (receiveBufferSize != -1) socket.setReceiveBufferSize(receiveBufferSize);
+        if (soLinger != -1) socket.setSoLinger(true, soLinger);
+        if (idleTimeoutMillis != 0) socket.setSoTimeout((int) idleTimeoutMillis);
+    }
+}
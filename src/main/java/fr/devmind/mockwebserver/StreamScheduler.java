@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okhttp3.internal.http2.Header;
+
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the streams of one HTTP/2 connection on a bounded number of threads. Streams waiting for
+ * a thread are served by urgency, then in arrival order. Schedulers must be shut down when their
+ * connection closes.
+ */
+final class StreamScheduler {
+    /** Urgency of streams that don't send a priority, from RFC 9218. */
+    static final int DEFAULT_URGENCY = 3;
+
+    private final ThreadPoolExecutor executor;
+    private final LatencyStats queueStats;
+    private final AtomicLong arrivals = new AtomicLong();
+
+    StreamScheduler(int maxConcurrentDispatches, ThreadFactory threadFactory, LatencyStats queueStats) {
+        this.executor = new ThreadPoolExecutor(maxConcurrentDispatches, maxConcurrentDispatches,
+                60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.queueStats = queueStats;
+    }
+
+    /**
+     * Queues {@code runnable}.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if this scheduler is shut down.
+     */
+    void execute(int urgency, Runnable runnable) {
+        executor.execute(new Task(urgency, arrivals.getAndIncrement(), runnable));
+    }
+
+    /**
+     * Refuses further streams. Queued streams are still served, then the threads exit.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the urgency of the stream from its {@code priority} header, like {@code u=1, i}, or
+     * {@link #DEFAULT_URGENCY}. Lower values are more urgent. OkHttp doesn't surface HTTP/2
+     * PRIORITY frames so only the header is honored.
+     */
+    static int urgency(List<Header> requestHeaders) {
+        for (int i = 0, size = requestHeaders.size(); i < size; i++) {
+            Header header = requestHeaders.get(i);
+            if (!header.name.utf8().equals("priority")) continue;
+            for (String parameter : header.value.utf8().split(",")) {
+                parameter = parameter.trim();
+                if (parameter.length() == 3 && parameter.startsWith("u=")) {
+                    int urgency = parameter.charAt(2) - '0';
+                    if (urgency >= 0 && urgency <= 7) return urgency;
+                }
+            }
+        }
+        return DEFAULT_URGENCY;
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+        private final int urgency;
+        private final long arrival;
+        private final long queuedAtNanos = System.nanoTime();
+        private final Runnable runnable;
+
+        Task(int urgency, long arrival, Runnable runnable) {
+            this.urgency = urgency;
+            this.arrival = arrival;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            queueStats.record(System.nanoTime() - queuedAtNanos);
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (urgency != other.urgency) return Integer.compare(urgency, other.urgency);
+            return Long.compare(arrival, other.arrival);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS session settings of the mock web server. Use these to deliberately measure full handshakes
+ * against resumed ones.
+ *
+ * <p>Session cache settings belong to an {@link SSLContext}: they only apply when HTTPS is enabled
+ * with {@link MockWebServer#useHttps(SSLContext, boolean)}, and they affect every other user of
+ * the same context while the server runs. The server applies these options when it starts and
+ * restores the previous settings of the context, and of the JVM, when it shuts down.
+ */
+public final class TlsOptions {
+    private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private int sessionCacheSize = -1;
+    private int sessionTimeoutSeconds = -1;
+    private Boolean sessionTickets;
+    private boolean forceFullHandshakes;
+    private ClientAuth clientAuth = ClientAuth.NONE;
+
+    /**
+     * Sets the maximum number of sessions kept for resumption. 0 means no limit.
+     */
+    public TlsOptions setSessionCacheSize(int sessionCacheSize) {
+        if (sessionCacheSize < 0) throw new IllegalArgumentException("sessionCacheSize < 0");
+        this.sessionCacheSize = sessionCacheSize;
+        return this;
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Sets how long a session may be resumed after it was created. 0 means no limit.
+     */
+    public TlsOptions setSessionTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+        long seconds = unit.toSeconds(timeout);
+        if (seconds > Integer.MAX_VALUE) throw new IllegalArgumentException("timeout too large");
+        this.sessionTimeoutSeconds = (int) seconds;
+        return this;
+    }
+
+    public long getSessionTimeout(TimeUnit unit) {
+        return sessionTimeoutSeconds == -1 ? -1 : unit.convert(sessionTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Enables or disables stateless session tickets (RFC 5077). The JDK reads this setting once per
+     * process from the {@code jdk.tls.server.enableSessionTicketExtension} system property, so it is
+     * only effective if the server starts before the first TLS handshake of the JVM, on Java 13 and
+     * later. The property is set while the server runs and restored when it shuts down.
+     */
+    public TlsOptions setSessionTickets(boolean sessionTickets) {
+        this.sessionTickets = sessionTickets;
+        return this;
+    }
+
+    public Boolean getSessionTickets() {
+        return sessionTickets;
+    }
+
+    /**
+     * Invalidates every session right after its handshake so that clients can never resume it and
+     * always pay for a full handshake. Sessions resumed from stateless tickets can't be invalidated:
+     * disable {@link #setSessionTickets session tickets} as well.
+     */
+    public TlsOptions setForceFullHandshakes(boolean forceFullHandshakes) {
+        this.forceFullHandshakes = forceFullHandshakes;
+        return this;
+    }
+
+    public boolean getForceFullHandshakes() {
+        return forceFullHandshakes;
+    }
+
+    /**
+     * Sets whether clients are asked for a certificate during the handshake. The certificates they
+     * present must be trusted by the server's {@link SSLContext}: build it with {@code
+     * SslClient.Builder.addTrustedCertificate()} using the client's {@code HeldCertificate} or its
+     * issuer. Captured certificates are available from {@link RecordedConnection}.
+     */
+    public TlsOptions setClientAuth(ClientAuth clientAuth) {
+        if (clientAuth == null) throw new NullPointerException("clientAuth == null");
+        this.clientAuth = clientAuth;
+        return this;
+    }
+
+    public ClientAuth getClientAuth() {
+        return clientAuth;
+    }
+
+    /**
+     * Applies these options to {@code sslContext}, which may be null, and to the JVM. Returns a
+     * task that restores the settings they replaced.
+     */
+    Runnable apply(SSLContext sslContext) {
+        List<Runnable> restores = new ArrayList<>();
+        if (sessionTickets != null) {
+            String previous = System.getProperty(SESSION_TICKETS_PROPERTY);
+            System.setProperty(SESSION_TICKETS_PROPERTY, sessionTickets.toString());
+            restores.add(() -> {
+                if (previous != null) {
+                    System.setProperty(SESSION_TICKETS_PROPERTY, previous);
+                } else {
+                    System.clearProperty(SESSION_TICKETS_PROPERTY);
+                }
+            });
+        }
+        if (sslContext != null) {
+            SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+            if (sessionCacheSize != -1) {
+                int previous = sessionContext.getSessionCacheSize();
+                sessionContext.setSessionCacheSize(sessionCacheSize);
+                restores.add(() -> sessionContext.setSessionCacheSize(previous));
+            }
+            if (sessionTimeoutSeconds != -1) {
+                int previous = sessionContext.getSessionTimeout();
+                sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+                restores.add(() -> sessionContext.setSessionTimeout(previous));
+            }
+        }
+        return () -> restores.forEach(Runnable::run);
+    }
+
+    /**
+     * How HTTPS connections authenticate clients.
+     */
+    public enum ClientAuth {
+        /** Don't ask for a client certificate. This is the default. */
+        NONE,
+
+        /** Ask for a client certificate but accept clients that don't present one. */
+        WANT,
+
+        /** Fail the handshake of clients that don't present a trusted certificate. */
+        NEED
+    }
+}
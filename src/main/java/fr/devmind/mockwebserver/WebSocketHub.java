@@ -0,0 +1,330 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.internal.Util;
+import okio.Buffer;
+import okio.ByteString;
+import okio.ForwardingSink;
+import okio.Sink;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * A registry of upgraded web sockets that fans messages out to all of them. Upgrade connections
+ * with a hub to subscribe them:
+ *
+ * <pre>{@code
+ * WebSocketHub hub = new WebSocketHub();
+ * server.setDispatcher(...); // Respond with new MockResponse().withWebSocketUpgrade(hub).
+ * ...
+ * hub.broadcast("tick");
+ * }</pre>
+ *
+ * <p>Each broadcast frame is encoded once and its bytes are shared by all subscribers. Frames wait
+ * in a bounded queue per subscriber and are written by a small pool of threads, so one slow
+ * subscriber doesn't hold up the others; what happens when its queue is full is set by the {@link
+ * SlowConsumerPolicy}. Subscribers should only receive messages through the hub: messages sent with
+ * {@link WebSocket#send} may interleave with broadcast frames.
+ */
+public final class WebSocketHub extends WebSocketListener {
+    private static final Logger logger = Logger.getLogger(WebSocketHub.class.getName());
+
+    private final Map<WebSocket, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor writers;
+    private int queueCapacity = 1024;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP;
+
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong disconnectedCount = new AtomicLong();
+
+    public WebSocketHub() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        this.writers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), Util.threadFactory("MockWebServer WebSocketHub", true));
+        this.writers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how many frames may wait for each subscriber. This applies to subscribers that connect
+     * afterwards.
+     */
+    public WebSocketHub setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity < 1");
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets what happens to a broadcast frame when a subscriber's queue is full.
+     */
+    public WebSocketHub setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        if (slowConsumerPolicy == null) throw new NullPointerException("slowConsumerPolicy == null");
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        return this;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Sends {@code text} to every subscriber. Returns the number of subscribers it was queued for.
+     */
+    public int broadcast(String text) throws InterruptedException {
+        return broadcast(frame(0x1, ByteString.encodeUtf8(text)));
+    }
+
+    /**
+     * Sends {@code bytes} in a binary frame to every subscriber. Returns the number of subscribers
+     * it was queued for.
+     */
+    public int broadcast(ByteString bytes) throws InterruptedException {
+        return broadcast(frame(0x2, bytes));
+    }
+
+    private int broadcast(Buffer frame) throws InterruptedException {
+        int result = 0;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.offer(frame)) result++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of web sockets currently subscribed.
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Returns the number of frames written to subscribers.
+     */
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    /**
+     * Returns the number of frames dropped by the {@link SlowConsumerPolicy#DROP} policy.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of subscribers disconnected by the {@link SlowConsumerPolicy#DISCONNECT}
+     * policy.
+     */
+    public long getDisconnectedCount() {
+        return disconnectedCount.get();
+    }
+
+    /**
+     * Subscribes an upgraded web socket. Returns a sink to give to the web socket in place of
+     * {@code sink}: it keeps frames of the web socket and of the hub from interleaving. The hub
+     * closes {@code socket} to disconnect the subscriber.
+     */
+    Sink subscribe(WebSocket webSocket, Sink sink, Socket socket) {
+        FrameSink frameSink = new FrameSink(sink);
+        subscribers.put(webSocket, new Subscriber(webSocket, frameSink, socket, queueCapacity));
+        return frameSink;
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+        subscribers.remove(webSocket);
+        webSocket.close(1000, null);
+    }
+
+    @Override
+    public void onClosed(WebSocket webSocket, int code, String reason) {
+        subscribers.remove(webSocket);
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+        subscribers.remove(webSocket);
+    }
+
+    /**
+     * Encodes a final, unmasked server frame.
+     */
+    private static Buffer frame(int opcode, ByteString payload) {
+        Buffer result = new Buffer();
+        result.writeByte(0x80 | opcode);
+        int size = payload.size();
+        if (size < 126) {
+            result.writeByte(size);
+        } else if (size <= 0xffff) {
+            result.writeByte(126);
+            result.writeShort(size);
+        } else {
+            result.writeByte(127);
+            result.writeLong(size);
+        }
+        result.write(payload);
+        return result;
+    }
+
+    /**
+     * Makes each write atomic and immediately flushed. Web socket writers flush each control frame
+     * in one write, and the hub writes each frame in one write.
+     */
+    private static final class FrameSink extends ForwardingSink {
+        FrameSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public synchronized void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            super.flush();
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            super.flush();
+        }
+    }
+
+    /**
+     * What to do with a frame when a subscriber's queue is full.
+     */
+    public enum SlowConsumerPolicy {
+        /** Drop the frame for this subscriber only. This is the default. */
+        DROP,
+
+        /** Disconnect the subscriber. */
+        DISCONNECT,
+
+        /** Wait until the subscriber catches up, holding up the broadcast. */
+        BLOCK
+    }
+
+    private final class Subscriber implements Runnable {
+        private final WebSocket webSocket;
+        private final FrameSink sink;
+        private final Socket socket;
+        private final BlockingQueue<Buffer> queue;
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Subscriber(WebSocket webSocket, FrameSink sink, Socket socket, int queueCapacity) {
+            this.webSocket = webSocket;
+            this.sink = sink;
+            this.socket = socket;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        boolean offer(Buffer frame) throws InterruptedException {
+            switch (slowConsumerPolicy) {
+                case BLOCK:
+                    queue.put(frame);
+                    break;
+                case DISCONNECT:
+                    if (!queue.offer(frame)) {
+                        disconnect();
+                        return false;
+                    }
+                    break;
+                default:
+                    if (!queue.offer(frame)) {
+                        droppedCount.incrementAndGet();
+                        return false;
+                    }
+                    break;
+            }
+            if (draining.compareAndSet(false, true)) {
+                writers.execute(this);
+            }
+            return true;
+        }
+
+        private void disconnect() {
+            if (subscribers.remove(webSocket) != null) {
+                disconnectedCount.incrementAndGet();
+                queue.clear();
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection, which fails the web socket. Server-side web sockets can't be
+         * canceled: they have no call.
+         */
+        private void close() {
+            closeQuietly(socket);
+        }
+
+        @Override
+        public void run() {
+            boolean claimed = true;
+            try {
+                while (true) {
+                    Buffer frame = queue.poll();
+                    if (frame == null) {
+                        claimed = false;
+                        draining.set(false);
+                        // Recheck: a frame may have been queued after poll() and before set().
+                        if (queue.isEmpty() || !draining.compareAndSet(false, true)) return;
+                        claimed = true;
+                        continue;
+                    }
+                    // Share the frame's segments rather than copying its bytes.
+                    Buffer bytes = new Buffer();
+                    frame.copyTo(bytes, 0, frame.size());
+                    sink.write(bytes, bytes.size());
+                    framesWritten.incrementAndGet();
+                }
+            } catch (InterruptedIOException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Failed to write to web socket subscriber", e);
+                subscribers.remove(webSocket);
+                queue.clear();
+                close();
+            } finally {
+                // Let the next frame schedule a writer, even if this one was interrupted.
+                if (claimed) draining.set(false);
+            }
+        }
+    }
+}
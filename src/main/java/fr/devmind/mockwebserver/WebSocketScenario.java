@@ -0,0 +1,315 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver;
+
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.internal.Util;
+import okio.ByteString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A web socket listener that plays a script of server-to-client messages on each connection and
+ * counts the traffic, to load test web socket clients. Share one scenario between any number of
+ * upgrades:
+ *
+ * <pre>{@code
+ * WebSocketScenario scenario = new WebSocketScenario()
+ *     .addMessages(1000, 256, 10, TimeUnit.MILLISECONDS)
+ *     .setMode(WebSocketScenario.Mode.ECHO);
+ * server.enqueue(new MockResponse().withWebSocketUpgrade(scenario));
+ * }</pre>
+ *
+ * <p>Scripts of all connections are played by a small shared pool of timer threads, so thousands
+ * of connections don't need thousands of timer threads.
+ */
+public final class WebSocketScenario extends WebSocketListener {
+    private static final ScheduledThreadPoolExecutor timer = newTimer();
+
+    /** Scripts pause while a connection has more than this many bytes waiting to be written. */
+    private static final long MAX_QUEUE_SIZE = 1024 * 1024;
+
+    private final List<Phase> phases = new ArrayList<>();
+    private Mode mode = Mode.NONE;
+    private boolean binary;
+    private boolean closeAfterScript;
+    private long pingIntervalMillis;
+
+    private final Set<WebSocket> openWebSockets =
+            Collections.newSetFromMap(new ConcurrentHashMap<WebSocket, Boolean>());
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * Appends {@code count} messages of {@code size} bytes to the script, sent one every {@code
+     * interval}. An interval of 0 sends them as fast as the connection accepts them.
+     */
+    public WebSocketScenario addMessages(int count, int size, long interval, TimeUnit unit) {
+        if (count < 0) throw new IllegalArgumentException("count < 0");
+        if (size < 0) throw new IllegalArgumentException("size < 0");
+        if (interval < 0) throw new IllegalArgumentException("interval < 0");
+        phases.add(new Phase(count, payload(size), unit.toNanos(interval)));
+        return this;
+    }
+
+    /**
+     * Sets what the server does with messages from the client.
+     */
+    public WebSocketScenario setMode(Mode mode) {
+        if (mode == null) throw new NullPointerException("mode == null");
+        this.mode = mode;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets whether scripted messages are sent as binary rather than text frames.
+     */
+    public WebSocketScenario setBinary(boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    /**
+     * Sets whether the server closes each connection once its script has been played.
+     */
+    public WebSocketScenario setCloseAfterScript(boolean closeAfterScript) {
+        this.closeAfterScript = closeAfterScript;
+        return this;
+    }
+
+    /**
+     * Sets the interval at which the server pings its clients. Connections of clients that don't
+     * answer in time fail. 0 disables pings, this is the default.
+     */
+    public WebSocketScenario setPingInterval(long interval, TimeUnit unit) {
+        if (interval < 0) throw new IllegalArgumentException("interval < 0");
+        this.pingIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    long getPingIntervalMillis() {
+        return pingIntervalMillis;
+    }
+
+    /**
+     * Returns the number of connections upgraded with this scenario.
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Returns the number of connections that are currently open.
+     */
+    public int getOpenConnectionCount() {
+        return openWebSockets.size();
+    }
+
+    /**
+     * Returns the number of messages sent to clients, scripted or not.
+     */
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns the number of connections that failed, including those whose clients didn't answer
+     * pings in time.
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+        connectionCount.incrementAndGet();
+        openWebSockets.add(webSocket);
+        timer.execute(new Script(webSocket));
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, String text) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(ByteString.encodeUtf8(text).size());
+        if (mode == Mode.ECHO) {
+            send(webSocket, text);
+        } else if (mode == Mode.BROADCAST) {
+            for (WebSocket subscriber : openWebSockets) {
+                send(subscriber, text);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes.size());
+        if (mode == Mode.ECHO) {
+            send(webSocket, bytes);
+        } else if (mode == Mode.BROADCAST) {
+            for (WebSocket subscriber : openWebSockets) {
+                send(subscriber, bytes);
+            }
+        }
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+        openWebSockets.remove(webSocket);
+        webSocket.close(1000, null);
+    }
+
+    @Override
+    public void onClosed(WebSocket webSocket, int code, String reason) {
+        openWebSockets.remove(webSocket);
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+        openWebSockets.remove(webSocket);
+        failureCount.incrementAndGet();
+    }
+
+    private void send(WebSocket webSocket, String text) {
+        if (webSocket.send(text)) {
+            messagesSent.incrementAndGet();
+            bytesSent.addAndGet(ByteString.encodeUtf8(text).size());
+        }
+    }
+
+    private void send(WebSocket webSocket, ByteString bytes) {
+        if (webSocket.send(bytes)) {
+            messagesSent.incrementAndGet();
+            bytesSent.addAndGet(bytes.size());
+        }
+    }
+
+    private static ByteString payload(int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        return ByteString.of(data);
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(
+                Math.max(2, Runtime.getRuntime().availableProcessors()),
+                Util.threadFactory("MockWebServer WebSocketScenario", true));
+        result.setKeepAliveTime(60, TimeUnit.SECONDS);
+        result.allowCoreThreadTimeOut(true);
+        result.setRemoveOnCancelPolicy(true);
+        return result;
+    }
+
+    /**
+     * What the server does with messages from the client.
+     */
+    public enum Mode {
+        /** Only count them. This is the default. */
+        NONE,
+
+        /** Send each message back to its sender. */
+        ECHO,
+
+        /** Send each message to every open connection of the scenario, including its sender. */
+        BROADCAST
+    }
+
+    private static final class Phase {
+        final int count;
+        final ByteString payload;
+        final String text;
+        final long intervalNanos;
+
+        Phase(int count, ByteString payload, long intervalNanos) {
+            this.count = count;
+            this.payload = payload;
+            this.text = payload.utf8();
+            this.intervalNanos = intervalNanos;
+        }
+    }
+
+    /**
+     * Plays the script on one connection. Each run sends the messages that are due then reschedules
+     * itself, so a connection never holds a timer thread while it waits.
+     */
+    private final class Script implements Runnable {
+        private final WebSocket webSocket;
+        private int phaseIndex;
+        private int sentInPhase;
+
+        Script(WebSocket webSocket) {
+            this.webSocket = webSocket;
+        }
+
+        @Override
+        public void run() {
+            while (phaseIndex < phases.size()) {
+                if (!openWebSockets.contains(webSocket)) return;
+                Phase phase = phases.get(phaseIndex);
+                if (sentInPhase == phase.count) {
+                    phaseIndex++;
+                    sentInPhase = 0;
+                    continue;
+                }
+                if (webSocket.queueSize() > MAX_QUEUE_SIZE) {
+                    timer.schedule(this, 1, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (binary) {
+                    send(webSocket, phase.payload);
+                } else {
+                    send(webSocket, phase.text);
+                }
+                sentInPhase++;
+                if (phase.intervalNanos > 0) {
+                    timer.schedule(this, phase.intervalNanos, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+            if (closeAfterScript) {
+                webSocket.close(1000, null);
+            }
+        }
+    }
+}
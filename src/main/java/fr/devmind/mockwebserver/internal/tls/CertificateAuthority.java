@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver.internal.tls;
+
+import org.bouncycastle.operator.OperatorCreationException;
+
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local certificate authority that issues a leaf certificate for each hostname clients ask for
+ * with SNI, the first time they ask for it. One HTTPS server configured with {@link #sslClient}
+ * can then impersonate any number of virtual hosts. Clients only need to trust {@link #root()}.
+ *
+ * <p>Issued certificates are kept in a bounded LRU cache. All of them share one key pair so that
+ * issuing a certificate costs a signature rather than a key generation.
+ */
+public final class CertificateAuthority {
+    private final HeldCertificate root;
+    private final String defaultHostname;
+    private final AtomicLong serialNumbers = new AtomicLong(1);
+    private final Map<String, HeldCertificate> issued;
+
+    /**
+     * @param defaultHostname the hostname to serve a certificate for when clients don't send SNI,
+     *                        as is the case for IP addresses and single-label names like {@code
+     *                        localhost}.
+     * @param maxCachedCertificates the number of issued certificates to keep.
+     */
+    public CertificateAuthority(String defaultHostname, final int maxCachedCertificates) {
+        if (maxCachedCertificates < 1) throw new IllegalArgumentException("maxCachedCertificates < 1");
+        this.defaultHostname = defaultHostname;
+        this.issued = new LinkedHashMap<String, HeldCertificate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HeldCertificate> eldest) {
+                return size() > maxCachedCertificates;
+            }
+        };
+        try {
+            this.root = new HeldCertificate.Builder()
+                    .commonName("MockWebServer Certificate Authority")
+                    .serialNumber(Long.toString(serialNumbers.getAndIncrement()))
+                    .ecdsa256()
+                    .ca(0)
+                    .build();
+        } catch (GeneralSecurityException | OperatorCreationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the self-signed certificate that signs all issued certificates.
+     */
+    public HeldCertificate root() {
+        return root;
+    }
+
+    /**
+     * Returns a certificate for {@code hostname} signed by this authority, issuing it if necessary.
+     */
+    public HeldCertificate certificate(String hostname) {
+        String key = hostname.toLowerCase(Locale.US);
+        synchronized (issued) {
+            HeldCertificate result = issued.get(key);
+            if (result != null) return result;
+        }
+
+        // Issue outside of the lock: racing handshakes for the same host both sign, one wins.
+        HeldCertificate result;
+        try {
+            result = new HeldCertificate.Builder()
+                    .commonName(key)
+                    .subjectAlternativeName(key)
+                    .serialNumber(Long.toString(serialNumbers.getAndIncrement()))
+                    .ecdsa256()
+                    .reuseKeyPair(true)
+                    .issuedBy(root)
+                    .build();
+        } catch (GeneralSecurityException | OperatorCreationException e) {
+            throw new RuntimeException(e);
+        }
+        synchronized (issued) {
+            HeldCertificate existing = issued.get(key);
+            if (existing != null) return existing;
+            issued.put(key, result);
+            return result;
+        }
+    }
+
+    /**
+     * Returns an SSL context that serves certificates issued on demand, and that trusts this
+     * authority. Use its socket factory with {@code MockWebServer.useHttps()} on the server side
+     * and with the HTTP client under test.
+     */
+    public SslClient sslClient() {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            keyStore.setCertificateEntry("root", root.certificate);
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+                    TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(keyStore);
+            TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
+            if (trustManagers.length != 1 || !(trustManagers[0] instanceof X509TrustManager)) {
+                throw new IllegalStateException("Unexpected default trust managers:"
+                        + Arrays.toString(trustManagers));
+            }
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(new KeyManager[]{new SniKeyManager()}, trustManagers, new SecureRandom());
+            return new SslClient(sslContext, (X509TrustManager) trustManagers[0]);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Selects the certificate to serve from the SNI hostname of the handshake in progress. Aliases
+     * are hostnames.
+     */
+    private final class SniKeyManager extends X509ExtendedKeyManager {
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            SSLSession session = socket instanceof SSLSocket
+                    ? ((SSLSocket) socket).getHandshakeSession()
+                    : null;
+            return chooseAlias(keyType, session);
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            return chooseAlias(keyType, engine != null ? engine.getHandshakeSession() : null);
+        }
+
+        private String chooseAlias(String keyType, SSLSession session) {
+            if (!"EC".equals(keyType)) return null;
+            if (session instanceof ExtendedSSLSession) {
+                for (SNIServerName serverName : ((ExtendedSSLSession) session).getRequestedServerNames()) {
+                    if (serverName instanceof SNIHostName) {
+                        return ((SNIHostName) serverName).getAsciiName();
+                    }
+                }
+            }
+            return defaultHostname;
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return new X509Certificate[]{certificate(alias).certificate, root.certificate};
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return certificate(alias).keyPair.getPrivate();
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return null; // Aliases are issued on demand.
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return null;
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return null;
+        }
+    }
+}
@@ -16,7 +16,12 @@
 package fr.devmind.mockwebserver.internal.tls;
 
 import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cert.CertIOException;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
@@ -25,17 +30,21 @@ import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.SecureRandom;
 import java.security.Security;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A certificate and its private key. This can be used on the server side by HTTPS servers, or on
@@ -56,9 +65,23 @@ public final class HeldCertificate {
             Security.addProvider(new BouncyCastleProvider());
         }
 
+        /**
+         * Key pairs shared by the builders that {@linkplain #reuseKeyPair(boolean) reuse} them, by
+         * key algorithm and size.
+         */
+        private static final Map<String, KeyPair> sharedKeyPairs = new ConcurrentHashMap<>();
+
         private final long duration = 1000L * 60 * 60 * 24; // One day.
         private String hostname;
         private String serialNumber = "1";
+        private String keyAlgorithm = "RSA";
+        private int keySize = 1024;
+        private KeyPair keyPair;
+        private boolean reuseKeyPair;
+        private File cacheDirectory;
+        private HeldCertificate issuedBy;
+        private int maxIntermediateCas = -1;
+        private final List<GeneralName> altNames = new ArrayList<>();
 
         public Builder serialNumber(String serialNumber) {
             this.serialNumber = serialNumber;
@@ -74,9 +97,95 @@ public final class HeldCertificate {
             return this;
         }
 
+        /**
+         * Add a subject alternative name to this certificate. Hostname verifiers check these names
+         * rather than the common name. IP addresses are recognized and encoded as such.
+         */
+        public Builder subjectAlternativeName(String altName) {
+            int tag = altName.matches("[0-9.]+") || altName.contains(":")
+                    ? GeneralName.iPAddress
+                    : GeneralName.dNSName;
+            this.altNames.add(new GeneralName(tag, altName));
+            return this;
+        }
+
+        /**
+         * Sign this certificate with {@code signedBy} instead of self-signing it.
+         */
+        public Builder issuedBy(HeldCertificate signedBy) {
+            this.issuedBy = signedBy;
+            return this;
+        }
+
+        /**
+         * Make this certificate a certificate authority that may sign other certificates, with at
+         * most {@code maxIntermediateCas} intermediate authorities below it.
+         */
+        public Builder ca(int maxIntermediateCas) {
+            this.maxIntermediateCas = maxIntermediateCas;
+            return this;
+        }
+
+        /**
+         * Generate an RSA key of {@code bits} bits. This is the default, with 1024 bits.
+         */
+        public Builder rsa(int bits) {
+            this.keyAlgorithm = "RSA";
+            this.keySize = bits;
+            return this;
+        }
+
+        /**
+         * Generate an ECDSA key on the P-256 curve. These are an order of magnitude faster to generate
+         * than RSA keys.
+         */
+        public Builder ecdsa256() {
+            this.keyAlgorithm = "EC";
+            this.keySize = 256;
+            return this;
+        }
+
+        /**
+         * Use {@code keyPair}, an RSA or EC key pair, instead of generating one.
+         */
+        public Builder keyPair(KeyPair keyPair) {
+            this.keyPair = keyPair;
+            return this;
+        }
+
+        /**
+         * Share one key pair, per key algorithm and size, between all the certificates built with this
+         * option in this JVM. Key generation then happens once instead of once per certificate.
+         */
+        public Builder reuseKeyPair(boolean reuseKeyPair) {
+            this.reuseKeyPair = reuseKeyPair;
+            return this;
+        }
+
+        /**
+         * Keep the built certificate in {@code cacheDirectory} and reuse it while it is valid in
+         * later builds with the same parameters, including in other JVMs. Certificates with a random
+         * common name or an explicit key pair are never cached.
+         */
+        public Builder cacheDirectory(File cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+            return this;
+        }
+
         public HeldCertificate build() throws GeneralSecurityException, OperatorCreationException {
+            HeldCertificateCache cache = cacheDirectory != null && hostname != null && keyPair == null
+                    && issuedBy == null
+                    ? new HeldCertificateCache(cacheDirectory)
+                    : null;
+            String cacheKey = hostname + "|" + serialNumber + "|" + keyAlgorithm + "|" + keySize
+                    + "|" + maxIntermediateCas + "|" + altNames;
+            if (cache != null) {
+                HeldCertificate cached = cache.get(cacheKey);
+                if (cached != null) return cached;
+            }
+
             // Subject, public & private keys for this certificate.
-            KeyPair heldKeyPair = generateKeyPair();
+            KeyPair heldKeyPair = keyPair != null ? keyPair : reuseKeyPair ? sharedKeyPair() : generateKeyPair();
             X500Name subject = hostname != null
                     ? new X500Name("CN=" + hostname)
                     : new X500Name("CN=" + UUID.randomUUID());
@@ -86,28 +195,69 @@ public final class HeldCertificate {
 
             SubjectPublicKeyInfo publicKeyInfo = SubjectPublicKeyInfo.getInstance(heldKeyPair.getPublic().getEncoded());
 
+            X500Name issuer = issuedBy != null
+                    ? X500Name.getInstance(issuedBy.certificate.getSubjectX500Principal().getEncoded())
+                    : subject;
+            KeyPair signedByKeyPair = issuedBy != null ? issuedBy.keyPair : heldKeyPair;
+
             X509v3CertificateBuilder certGen = new X509v3CertificateBuilder(
-                    subject,
+                    issuer,
                     new BigInteger(serialNumber),
                     new Date(now),
                     new Date(now + duration),
                     subject,
                     publicKeyInfo);
+            try {
+                if (maxIntermediateCas != -1) {
+                    certGen.addExtension(Extension.basicConstraints, true,
+                            new BasicConstraints(maxIntermediateCas));
+                }
+                if (!altNames.isEmpty()) {
+                    certGen.addExtension(Extension.subjectAlternativeName, false,
+                            new GeneralNames(altNames.toArray(new GeneralName[altNames.size()])));
+                }
+            } catch (CertIOException e) {
+                throw new GeneralSecurityException(e);
+            }
 
-            ContentSigner signer = new JcaContentSignerBuilder("SHA256WithRSAEncryption").build(heldKeyPair.getPrivate());
+            ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm(signedByKeyPair))
+                    .build(signedByKeyPair.getPrivate());
             X509CertificateHolder certHolder = certGen.build(signer);
-            X509Certificate cert = (new JcaX509CertificateConverter().getCertificate(certHolder));
-
-            CertificateFactory cf = CertificateFactory.getInstance("X.509", "BC");
-            X509Certificate certificate = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(cert.getEncoded()));
+            X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(certHolder);
 
-            return new HeldCertificate(certificate, heldKeyPair);
+            HeldCertificate result = new HeldCertificate(certificate, heldKeyPair);
+            if (cache != null) {
+                cache.put(cacheKey, result);
+            }
+            return result;
         }
 
         public KeyPair generateKeyPair() throws GeneralSecurityException {
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA", "BC");
-            keyPairGenerator.initialize(1024, new SecureRandom());
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(keyAlgorithm);
+            if (keyAlgorithm.equals("EC")) {
+                keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+            } else {
+                keyPairGenerator.initialize(keySize, new SecureRandom());
+            }
             return keyPairGenerator.generateKeyPair();
         }
+
+        private KeyPair sharedKeyPair() throws GeneralSecurityException {
+            String key = keyAlgorithm + keySize;
+            KeyPair result = sharedKeyPairs.get(key);
+            if (result == null) {
+                // Racing builders may both generate a key pair; only the first one is kept.
+                KeyPair generated = generateKeyPair();
+                result = sharedKeyPairs.putIfAbsent(key, generated);
+                if (result == null) result = generated;
+            }
+            return result;
+        }
+
+        private static String signatureAlgorithm(KeyPair keyPair) {
+            return keyPair.getPrivate().getAlgorithm().equals("EC")
+                    ? "SHA256withECDSA"
+                    : "SHA256WithRSAEncryption";
+        }
     }
 }
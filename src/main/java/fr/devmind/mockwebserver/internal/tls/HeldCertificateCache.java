@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.devmind.mockwebserver.internal.tls;
+
+import okio.ByteString;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores held certificates as PKCS#12 files in a directory, one file per set of certificate
+ * parameters. Any failure to read or write the cache is logged and treated as a miss: the caller
+ * then generates a new certificate.
+ */
+final class HeldCertificateCache {
+    private static final Logger logger = Logger.getLogger(HeldCertificateCache.class.getName());
+    private static final char[] PASSWORD = "password".toCharArray();
+    private static final String ALIAS = "held";
+
+    /**
+     * Certificates expiring sooner than this are regenerated rather than served from the cache.
+     */
+    private static final long MIN_REMAINING_VALIDITY_MILLIS = 1000L * 60 * 60;
+
+    private final File directory;
+
+    HeldCertificateCache(File directory) {
+        this.directory = directory;
+    }
+
+    HeldCertificate get(String key) {
+        File file = file(key);
+        if (!file.exists()) return null;
+        try (InputStream in = new FileInputStream(file)) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, PASSWORD);
+            Key privateKey = keyStore.getKey(ALIAS, PASSWORD);
+            Certificate certificate = keyStore.getCertificate(ALIAS);
+            if (!(privateKey instanceof PrivateKey) || !(certificate instanceof X509Certificate)) return null;
+
+            X509Certificate x509Certificate = (X509Certificate) certificate;
+            long expiresAt = x509Certificate.getNotAfter().getTime();
+            if (expiresAt - System.currentTimeMillis() < MIN_REMAINING_VALIDITY_MILLIS) return null;
+
+            KeyPair keyPair = new KeyPair(x509Certificate.getPublicKey(), (PrivateKey) privateKey);
+            return new HeldCertificate(x509Certificate, keyPair);
+        } catch (IOException | GeneralSecurityException e) {
+            logger.log(Level.INFO, "Ignoring unreadable cached certificate " + file, e);
+            return null;
+        }
+    }
+
+    void put(String key, HeldCertificate heldCertificate) {
+        File file = file(key);
+        File tmp = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("failed to create " + directory);
+            }
+            tmp = File.createTempFile("held", ".tmp", directory);
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, PASSWORD);
+            keyStore.setKeyEntry(ALIAS, heldCertificate.keyPair.getPrivate(), PASSWORD,
+                    new Certificate[]{heldCertificate.certificate});
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                keyStore.store(out, PASSWORD);
+            }
+            // Rename so that concurrent JVMs never read a partially written file.
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to rename " + tmp + " to " + file);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            logger.log(Level.INFO, "Failed to cache certificate in " + file, e);
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    private File file(String key) {
+        return new File(directory, ByteString.encodeUtf8(key).sha256().hex() + ".p12");
+    }
+}
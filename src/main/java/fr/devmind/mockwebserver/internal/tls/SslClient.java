@@ -23,6 +23,7 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -42,13 +43,19 @@ import java.util.List;
  * create a secure connection.
  */
 public final class SslClient {
+    /**
+     * System property naming a directory where the {@linkplain #localhost() localhost} certificate
+     * is kept between JVMs, so that forked test JVMs don't each generate one.
+     */
+    public static final String CERTIFICATE_CACHE_PROPERTY = "fr.devmind.mockwebserver.certificateCache";
+
     private static SslClient localhost; // Lazily initialized.
 
     public final SSLContext sslContext;
     public final SSLSocketFactory socketFactory;
     public final X509TrustManager trustManager;
 
-    private SslClient(SSLContext sslContext, X509TrustManager trustManager) {
+    SslClient(SSLContext sslContext, X509TrustManager trustManager) {
         this.sslContext = sslContext;
         this.socketFactory = sslContext.getSocketFactory();
         this.trustManager = trustManager;
@@ -62,9 +69,11 @@ public final class SslClient {
 
         try {
             // Generate a self-signed cert for the server to serve and the client to trust.
+            String cacheDirectory = System.getProperty(CERTIFICATE_CACHE_PROPERTY);
             HeldCertificate heldCertificate = new HeldCertificate.Builder()
                     .serialNumber("1")
                     .commonName(InetAddress.getByName("localhost").getCanonicalHostName())
+                    .cacheDirectory(cacheDirectory != null ? new File(cacheDirectory) : null)
                     .build();
 
             localhost = new Builder()
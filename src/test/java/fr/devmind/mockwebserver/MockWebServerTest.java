@@ -15,9 +15,31 @@
  */
 package fr.devmind.mockwebserver;
 
+import fr.devmind.mockwebserver.internal.tls.CertificateAuthority;
+import fr.devmind.mockwebserver.internal.tls.HeldCertificate;
+import fr.devmind.mockwebserver.internal.tls.SslClient;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.TlsVersion;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
 import okhttp3.internal.Util;
+import okhttp3.internal.http2.ErrorCode;
+import okhttp3.internal.http2.Header;
+import okhttp3.internal.http2.Http2Connection;
+import okhttp3.internal.http2.Http2Stream;
+import okhttp3.internal.http2.PushObserver;
+import okhttp3.internal.http2.Settings;
+import okhttp3.internal.http2.StreamResetException;
+import okio.BufferedSink;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
 import org.assertj.core.data.Percentage;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -28,20 +50,56 @@ import org.junit.jupiter.api.extension.ExtendWith;
 
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -51,9 +109,38 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 @ExtendWith(MockWebServerExtension.class)
 @DisplayName("Test MockWebServer")
 public final class MockWebServerTest {
+    private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    /** Accepts and discards pushed streams, so that pushing doesn't fail the server. */
+    private static final PushObserver ACCEPT_PUSHES = new PushObserver() {
+        @Override
+        public boolean onRequest(int streamId, List<Header> requestHeaders) {
+            return false;
+        }
+
+        @Override
+        public boolean onHeaders(int streamId, List<Header> responseHeaders, boolean last) {
+            return false;
+        }
+
+        @Override
+        public boolean onData(int streamId, BufferedSource source, int byteCount, boolean last) throws IOException {
+            source.skip(byteCount);
+            return false;
+        }
+
+        @Override
+        public void onReset(int streamId, ErrorCode errorCode) {
+        }
+    };
 
     MockWebServer server = new MockWebServer();
 
+    @AfterEach
+    public void shutdownServer() throws Exception {
+        server.shutdown();
+    }
+
     @Nested
     @DisplayName("Headers ")
     class TestMockResponseHeader {
@@ -433,86 +520,1933 @@ public final class MockWebServerTest {
     }
 
     @Nested
-    @DisplayName("Server start")
-    class TestServerStart {
-        @BeforeEach
-        public void setUp() throws Exception {
+    @DisplayName("Connections ")
+    class TestConnections {
+        @Test
+        @DisplayName("should spread connections over several acceptors")
+        public void multipleAcceptors() throws Exception {
+            server.setAcceptorCount(4);
             server.start();
+            for (int i = 0; i < 8; i++) {
+                server.enqueue(new MockResponse().setBody("hello").addHeader("Connection: close"));
+            }
+
+            for (int i = 0; i < 8; i++) {
+                HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+                assertThat(connection.getResponseCode()).isEqualTo(HttpURLConnection.HTTP_OK);
+                connection.getInputStream().close();
+            }
+
+            long[] counts = server.getAcceptedConnectionCounts();
+            assertThat(counts).hasSize(4);
+            assertThat(LongStream.of(counts).sum()).isEqualTo(8);
         }
 
-        @AfterEach
-        public void tearDown() throws Exception {
+        @Test
+        @DisplayName("should create acceptor and connection threads with the thread factory")
+        public void threadFactory() throws Exception {
+            List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+            server.setThreadFactory(runnable -> {
+                Thread thread = new Thread(runnable, "custom-" + threads.size());
+                thread.setDaemon(true);
+                threads.add(thread);
+                return thread;
+            });
+            CompletableFuture<Thread> dispatchThread = new CompletableFuture<>();
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    dispatchThread.complete(Thread.currentThread());
+                    return new MockResponse().setBody("hello");
+                }
+            });
+            server.start();
+
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            assertThat(connection.getResponseCode()).isEqualTo(HttpURLConnection.HTTP_OK);
+            connection.getInputStream().close();
+
+            // One acceptor thread and one connection thread.
+            assertThat(threads).hasSizeGreaterThanOrEqualTo(2);
+            assertThat(threads).contains(dispatchThread.get(5, SECONDS));
+            assertThat(dispatchThread.get().getName()).startsWith("MockWebServer");
+
             server.shutdown();
+            for (Thread thread : new ArrayList<>(threads)) {
+                thread.join(5_000);
+                assertThat(thread.getName()).startsWith("custom-");
+            }
         }
 
         @Test
-        @DisplayName("should attribute a random port")
-        public void portImplicitlyStarts() throws IOException {
-            assertThat(server.getPort() > 0).isTrue();
+        @DisplayName("should refuse acceptor count changes after start")
+        public void acceptorCountAfterStart() throws Exception {
+            server.start();
+            assertThatThrownBy(() -> server.setAcceptorCount(2)).isExactlyInstanceOf(IllegalStateException.class);
         }
 
         @Test
-        @DisplayName("should set the hostname")
-        public void hostnameImplicitlyStarts() throws IOException {
-            assertThat(server.getHostName()).isNotEmpty();
+        @DisplayName("should release its sockets when it fails to start")
+        public void startFailureReleasesSockets() throws Exception {
+            List<ServerSocket> created = new ArrayList<>();
+            server.setServerSocketFactory(new ServerSocketFactory() {
+                @Override
+                public ServerSocket createServerSocket() throws IOException {
+                    ServerSocket result = ServerSocketFactory.getDefault().createServerSocket();
+                    created.add(result);
+                    return result;
+                }
+
+                @Override
+                public ServerSocket createServerSocket(int port) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public ServerSocket createServerSocket(int port, int backlog) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public ServerSocket createServerSocket(int port, int backlog, InetAddress address) {
+                    throw new UnsupportedOperationException();
+                }
+            });
+            server.setAcceptorCount(2);
+
+            try (ServerSocket occupied = new ServerSocket(0, 50, InetAddress.getByName("localhost"))) {
+                assertThatThrownBy(() -> server.start(occupied.getLocalPort())).isInstanceOf(IOException.class);
+            }
+            assertThat(server.isStarted()).isFalse();
+            assertThat(created).isNotEmpty().allMatch(ServerSocket::isClosed);
+
+            server.start();
+            assertThat(server.getPort()).isGreaterThan(0);
         }
 
         @Test
-        @DisplayName("should set the proxy adress")
-        public void toProxyAddressImplicitlyStarts() throws IOException {
-            assertThat(server.toProxyAddress()).isNotNull();
+        @DisplayName("should close idle connections")
+        public void idleConnectionIsReaped() throws Exception {
+            server.setSocketOptions(new SocketOptions()
+                    .setTcpNoDelay(true)
+                    .setIdleTimeout(200, TimeUnit.MILLISECONDS));
+            server.start();
+
+            try (Socket socket = new Socket(server.getHostName(), server.getPort())) {
+                socket.setSoTimeout(5000);
+                long startNanos = System.nanoTime();
+                assertThat(socket.getInputStream().read()).isEqualTo(-1);
+                assertThat(NANOSECONDS.toMillis(System.nanoTime() - startNanos)).isLessThan(5000);
+            }
         }
 
         @Test
-        @DisplayName("should attribute different port to servers")
-        public void differentInstancesGetDifferentPorts() throws IOException {
+        @DisplayName("should close idle connections without logging a failure while awaiting the HTTP/2 preface")
+        public void idleConnectionBeforePrefaceIsQuiet() throws Exception {
+            server.setSocketOptions(new SocketOptions().setIdleTimeout(200, TimeUnit.MILLISECONDS));
+            server.start();
+
+            List<LogRecord> records = new CopyOnWriteArrayList<>();
+            Handler handler = new Handler() {
+                @Override
+                public void publish(LogRecord record) {
+                    records.add(record);
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            Logger logger = Logger.getLogger(MockWebServer.class.getName());
+            logger.addHandler(handler);
+            try (Socket socket = new Socket(server.getHostName(), server.getPort())) {
+                socket.setSoTimeout(5000);
+                assertThat(socket.getInputStream().read()).isEqualTo(-1);
+            } finally {
+                logger.removeHandler(handler);
+            }
+            assertThat(records).noneMatch(record -> record.getThrown() != null
+                    || record.getMessage().contains(" failed"));
+        }
+
+        @Test
+        @DisplayName("should close the connection after max requests")
+        public void maxRequestsPerConnection() throws Exception {
+            server.setKeepAlivePolicy(new KeepAlivePolicy().setMaxRequests(2));
+            server.start();
+            server.enqueue(new MockResponse().setBody("a"));
+            server.enqueue(new MockResponse().setBody("b"));
+            server.enqueue(new MockResponse().setBody("c"));
+
+            List<String> connectionHeaders = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+                connectionHeaders.add(connection.getHeaderField("Connection"));
+                connection.getInputStream().close();
+            }
+
+            assertThat(connectionHeaders).containsExactly(null, "close", null);
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(0);
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(1);
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(0);
+        }
+
+        @Test
+        @DisplayName("should close the connection with the first response past max age")
+        public void maxConnectionAge() throws Exception {
+            server.setKeepAlivePolicy(new KeepAlivePolicy().setMaxAge(200, TimeUnit.MILLISECONDS));
+            server.start();
+            server.enqueue(new MockResponse().setBody("a"));
+            server.enqueue(new MockResponse().setBody("b"));
+
+            HttpURLConnection first = (HttpURLConnection) server.url("/").url().openConnection();
+            assertThat(first.getHeaderField("Connection")).isNull();
+            first.getInputStream().close();
+            Thread.sleep(300);
+            HttpURLConnection second = (HttpURLConnection) server.url("/").url().openConnection();
+            assertThat(second.getHeaderField("Connection")).isEqualTo("close");
+            second.getInputStream().close();
+
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(0);
+            assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(1);
+        }
+    }
+
+    @Nested
+    @DisplayName("HTTPS ")
+    class TestHttps {
+        @Test
+        @DisplayName("should count full and resumed handshakes")
+        public void resumedHandshake() throws Exception {
+            server.useHttps(SslClient.localhost().sslContext, false);
+            server.enqueue(new MockResponse());
+            server.enqueue(new MockResponse());
+            server.start();
+
+            assertThat(requestOverTls12(SslClient.localhost().socketFactory)).isEqualTo("HTTP/1.1 200 OK");
+            Thread.sleep(10); // Let the resumed handshake start after the session was created.
+            assertThat(requestOverTls12(SslClient.localhost().socketFactory)).isEqualTo("HTTP/1.1 200 OK");
+
+            assertThat(server.getFullHandshakeStats().getCount()).isEqualTo(1);
+            assertThat(server.getResumedHandshakeStats().getCount()).isEqualTo(1);
+        }
+
+        @Test
+        @DisplayName("should restore the session settings it changed on shutdown")
+        public void tlsOptionsScopedToServer() throws Exception {
+            SSLSessionContext sessionContext = SslClient.localhost().sslContext.getServerSessionContext();
+            int cacheSize = sessionContext.getSessionCacheSize();
+            String sessionTickets = System.getProperty(SESSION_TICKETS_PROPERTY);
+            server.useHttps(SslClient.localhost().sslContext, false);
+            server.setTlsOptions(new TlsOptions()
+                    .setSessionCacheSize(cacheSize + 1)
+                    .setSessionTickets(false));
+
+            server.start();
+            assertThat(sessionContext.getSessionCacheSize()).isEqualTo(cacheSize + 1);
+            assertThat(System.getProperty(SESSION_TICKETS_PROPERTY)).isEqualTo("false");
+
+            server.shutdown();
+            assertThat(sessionContext.getSessionCacheSize()).isEqualTo(cacheSize);
+            assertThat(System.getProperty(SESSION_TICKETS_PROPERTY)).isEqualTo(sessionTickets);
+        }
+
+        @Test
+        @DisplayName("should reuse a cached certificate across servers")
+        public void cachedCertificate() throws Exception {
+            File cacheDirectory = Files.createTempDirectory("certificates").toFile();
             MockWebServer other = new MockWebServer();
-            assertThat(server.getPort()).isNotEqualTo(other.getPort());
-            other.shutdown();
+            try {
+                HeldCertificate first = new HeldCertificate.Builder()
+                        .commonName("localhost")
+                        .ecdsa256()
+                        .cacheDirectory(cacheDirectory)
+                        .build();
+                HeldCertificate second = new HeldCertificate.Builder()
+                        .commonName("localhost")
+                        .ecdsa256()
+                        .cacheDirectory(cacheDirectory)
+                        .build();
+                assertThat(second.certificate).isEqualTo(first.certificate);
+
+                server.useHttps(new SslClient.Builder().certificateChain(first).build().socketFactory, false);
+                other.useHttps(new SslClient.Builder().certificateChain(second).build().socketFactory, false);
+                server.start();
+                other.start();
+                SSLSocketFactory client = new SslClient.Builder()
+                        .addTrustedCertificate(first.certificate)
+                        .build()
+                        .socketFactory;
+                assertThat(peerCertificate(client, other)).isEqualTo(peerCertificate(client, server));
+            } finally {
+                other.shutdown();
+                for (File file : cacheDirectory.listFiles()) {
+                    file.delete();
+                }
+                cacheDirectory.delete();
+            }
         }
 
         @Test
-        @DisplayName("should continue on code status 100")
-        public void http100Continue() throws Exception {
-            server.enqueue(new MockResponse().setBody("response"));
+        @DisplayName("should issue a certificate for each SNI hostname")
+        public void sniCertificateAuthority() throws Exception {
+            CertificateAuthority authority = new CertificateAuthority("default.test", 8);
+            server.useHttps(authority.sslClient().socketFactory, false);
+            server.start();
+            SSLSocketFactory client = new SslClient.Builder()
+                    .addTrustedCertificate(authority.root().certificate)
+                    .build()
+                    .socketFactory;
+
+            X509Certificate api = (X509Certificate) peerCertificate(client, server, "api.example.com");
+            X509Certificate cdn = (X509Certificate) peerCertificate(client, server, "cdn.example.com");
+            X509Certificate noSni = (X509Certificate) peerCertificate(client, server);
+
+            assertThat(api.getSubjectX500Principal().getName()).isEqualTo("CN=api.example.com");
+            assertThat(cdn.getSubjectX500Principal().getName()).isEqualTo("CN=cdn.example.com");
+            assertThat(noSni.getSubjectX500Principal().getName()).isEqualTo("CN=default.test");
+            assertThat(api.getIssuerX500Principal()).isEqualTo(authority.root().certificate.getSubjectX500Principal());
+            assertThat(peerCertificate(client, server, "API.example.com")).isEqualTo(api);
+        }
 
-            URL url = server.url("/").url();
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setDoOutput(true);
-            connection.setRequestProperty("Expect", "100-Continue");
-            connection.getOutputStream().write("request".getBytes(StandardCharsets.UTF_8));
+        @Test
+        @DisplayName("should record the client certificate and TLS details of the connection")
+        public void clientCertificate() throws Exception {
+            HeldCertificate serverCertificate = new HeldCertificate.Builder()
+                    .commonName("localhost")
+                    .ecdsa256()
+                    .build();
+            HeldCertificate clientCertificate = new HeldCertificate.Builder()
+                    .commonName("client")
+                    .ecdsa256()
+                    .build();
+            server.useHttps(new SslClient.Builder()
+                    .certificateChain(serverCertificate)
+                    .addTrustedCertificate(clientCertificate.certificate)
+                    .build()
+                    .socketFactory, false);
+            server.setTlsOptions(new TlsOptions().setClientAuth(TlsOptions.ClientAuth.NEED));
+            server.enqueue(new MockResponse());
+            server.start();
 
-            InputStream in = connection.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            assertThat(reader.readLine()).isEqualTo("response");
+            SSLSocketFactory client = new SslClient.Builder()
+                    .certificateChain(clientCertificate)
+                    .addTrustedCertificate(serverCertificate.certificate)
+                    .build()
+                    .socketFactory;
+            assertThat(requestOverTls12(client)).isEqualTo("HTTP/1.1 200 OK");
+
+            RecordedConnection connection = server.takeRequest().getConnection();
+            assertThat(connection.getProtocol()).isEqualTo(Protocol.HTTP_1_1);
+            assertThat(connection.getTlsVersion()).isEqualTo(TlsVersion.TLS_1_2);
+            assertThat(connection.getCipherSuite()).isNotNull();
+            assertThat(connection.getPeerCertificates()).containsExactly(clientCertificate.certificate);
+            assertThat(connection.getPeerPrincipal().getName()).isEqualTo("CN=client");
+            assertThat(connection.getHandshakeDuration(TimeUnit.NANOSECONDS)).isPositive();
+        }
 
-            RecordedRequest request = server.takeRequest();
-            assertThat(request.getBody().readUtf8()).isEqualTo("request");
+        @Test
+        @DisplayName("should reject clients without a certificate when one is needed")
+        public void clientCertificateNeeded() throws Exception {
+            HeldCertificate serverCertificate = new HeldCertificate.Builder()
+                    .commonName("localhost")
+                    .ecdsa256()
+                    .build();
+            server.useHttps(new SslClient.Builder().certificateChain(serverCertificate).build().socketFactory, false);
+            server.setTlsOptions(new TlsOptions().setClientAuth(TlsOptions.ClientAuth.NEED));
+            server.start();
+
+            SSLSocketFactory client = new SslClient.Builder()
+                    .addTrustedCertificate(serverCertificate.certificate)
+                    .build()
+                    .socketFactory;
+            assertThatThrownBy(() -> requestOverTls12(client)).isInstanceOf(IOException.class);
+            assertThat(server.getRequestCount()).isZero();
+        }
+
+        private Certificate peerCertificate(SSLSocketFactory socketFactory, MockWebServer server, String sniHostname)
+                throws IOException {
+            try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(server.getHostName(), server.getPort())) {
+                SSLParameters parameters = socket.getSSLParameters();
+                parameters.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(sniHostname)));
+                socket.setSSLParameters(parameters);
+                socket.startHandshake();
+                return socket.getSession().getPeerCertificates()[0];
+            }
+        }
+
+        private Certificate peerCertificate(SSLSocketFactory socketFactory, MockWebServer server) throws IOException {
+            try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(server.getHostName(), server.getPort())) {
+                socket.startHandshake();
+                return socket.getSession().getPeerCertificates()[0];
+            }
+        }
+
+        /**
+         * Makes a request over TLS 1.2, whose sessions are resumed from the server's cache, and
+         * returns the response's status line.
+         */
+        private String requestOverTls12(SSLSocketFactory socketFactory) throws IOException {
+            try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(server.getHostName(), server.getPort())) {
+                socket.setEnabledProtocols(new String[]{"TLSv1.2"});
+                OutputStream out = socket.getOutputStream();
+                out.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))
+                        .readLine();
+            }
         }
+    }
 
+    @Nested
+    @DisplayName("HTTP/2 ")
+    class TestHttp2 {
         @Test
-        @DisplayName("should reconstruct URL")
-        public void requestUrlReconstructed() throws Exception {
-            server.enqueue(new MockResponse().setBody("hello world"));
+        @DisplayName("should send the profile's settings, then its scheduled changes")
+        public void settingsChanges() throws Exception {
+            server.setHttp2Profile(new Http2Profile()
+                    .setMaxConcurrentStreams(3)
+                    .addSettingsChange(100, TimeUnit.MILLISECONDS, new Settings().set(4, 7)));
+            server.start();
 
-            URL url = server.url("/a/deep/path?key=foo%20bar").url();
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            InputStream in = connection.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            BlockingQueue<Integer> maxConcurrentStreams = new LinkedBlockingQueue<>();
+            Http2Connection connection = http2Connection(new Http2Connection.Listener() {
+                @Override
+                public void onStream(Http2Stream stream) throws IOException {
+                    stream.close(ErrorCode.REFUSED_STREAM);
+                }
 
-            assertThat(connection.getResponseCode()).isEqualTo(HttpURLConnection.HTTP_OK);
-            assertThat(reader.readLine()).isEqualTo("hello world");
+                @Override
+                public void onSettings(Http2Connection connection) {
+                    maxConcurrentStreams.add(connection.maxConcurrentStreams());
+                }
+            });
+            try {
+                List<Integer> received = new ArrayList<>();
+                while (!received.contains(7)) {
+                    Integer value = maxConcurrentStreams.poll(5, SECONDS);
+                    assertThat(value).isNotNull();
+                    received.add(value);
+                }
+                assertThat(received.indexOf(3)).isBetween(0, received.indexOf(7) - 1);
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Test
+        @DisplayName("should cancel pending settings changes on shutdown")
+        public void settingsChangesCancelledOnShutdown() throws Exception {
+            server.setHttp2Profile(new Http2Profile()
+                    .addSettingsChange(1, TimeUnit.MINUTES, new Settings().set(4, 7)));
+            server.enqueue(new MockResponse().setBody("hello"));
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "GET", "/", false);
+                assertThat(Okio.buffer(stream.getSource()).readUtf8()).isEqualTo("hello");
+
+                long startNanos = System.nanoTime();
+                server.shutdown();
+                assertThat(NANOSECONDS.toSeconds(System.nanoTime() - startNanos)).isLessThan(5);
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Test
+        @DisplayName("should throttle request bodies")
+        public void throttleRequestBodies() throws Exception {
+            server.setHttp2Profile(new Http2Profile()
+                    .throttleRequestBodies(1024, 100, TimeUnit.MILLISECONDS));
+            server.enqueue(new MockResponse());
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                long startNanos = System.nanoTime();
+                Http2Stream stream = http2Request(connection, "POST", "/", true);
+                BufferedSink body = Okio.buffer(stream.getSink());
+                body.write(new byte[4096]);
+                body.close();
+
+                RecordedRequest request = server.takeRequest();
+                assertThat(request.getBodySize()).isEqualTo(4096);
+                // Three sleeps between four periods of 1024 bytes.
+                assertThat(NANOSECONDS.toMillis(System.nanoTime() - startNanos)).isGreaterThanOrEqualTo(300);
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Test
+        @DisplayName("should disconnect during a throttled request body when the response asks to")
+        public void throttledRequestBodyKeepsSocketPolicy() throws Exception {
+            server.setHttp2Profile(new Http2Profile()
+                    .throttleRequestBodies(1024, 10, TimeUnit.MILLISECONDS));
+            server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_DURING_REQUEST_BODY));
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "POST", "/", true);
+                assertThatThrownBy(() -> {
+                    BufferedSink body = Okio.buffer(stream.getSink());
+                    body.write(new byte[8192]);
+                    body.close();
+                    stream.takeResponseHeaders();
+                }).isInstanceOf(IOException.class);
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Test
+        @DisplayName("should dispatch queued streams by urgency, then release the scheduler threads")
+        public void streamScheduler() throws Exception {
+            List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+            server.setThreadFactory(runnable -> {
+                Thread thread = new Thread(runnable);
+                threads.add(thread);
+                return thread;
+            });
+            server.setMaxConcurrentStreamDispatches(1);
+            CompletableFuture<Void> unblock = new CompletableFuture<>();
+            CompletableFuture<Void> blocked = new CompletableFuture<>();
+            List<String> dispatched = Collections.synchronizedList(new ArrayList<>());
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    dispatched.add(request.getPath());
+                    if (request.getPath().equals("/block")) {
+                        blocked.complete(null);
+                        unblock.join();
+                    }
+                    return new MockResponse().setBody(request.getPath());
+                }
+            });
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                List<Http2Stream> streams = new ArrayList<>();
+                streams.add(http2Request(connection, "GET", "/block", false));
+                blocked.get(5, SECONDS);
+                // The only dispatch thread is busy: these streams wait in the queue.
+                streams.add(http2Request(connection, "GET", "/low", false, new Header("priority", "u=5")));
+                streams.add(http2Request(connection, "GET", "/default", false));
+                streams.add(http2Request(connection, "GET", "/high", false, new Header("priority", "u=1, i")));
+                Thread.sleep(200);
+                unblock.complete(null);
+
+                for (Http2Stream stream : streams) {
+                    Okio.buffer(stream.getSource()).readUtf8();
+                }
+                assertThat(dispatched).containsExactly("/block", "/high", "/default", "/low");
+                assertThat(server.getStreamQueueStats().getCount()).isEqualTo(4);
+            } finally {
+                connection.close();
+            }
+
+            server.shutdown();
+            for (Thread thread : new ArrayList<>(threads)) {
+                thread.join(5_000);
+                assertThat(thread.isAlive()).isFalse();
+            }
+        }
+
+        @Test
+        @DisplayName("should send the profile's window size and stream limit in SETTINGS frames")
+        public void settingsOnTheWire() throws Exception {
+            server.setHttp2Profile(new Http2Profile()
+                    .setInitialWindowSize(1024)
+                    .setMaxConcurrentStreams(3));
+            server.start();
+
+            try (Socket socket = new Socket(server.getHostName(), server.getPort())) {
+                socket.setSoTimeout(5000);
+                BufferedSource source = Okio.buffer(Okio.source(socket));
+                BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                writeClientPreface(sink);
+
+                Map<Integer, Integer> settings = new HashMap<>();
+                while (!settings.containsKey(RawFrame.SETTINGS_MAX_CONCURRENT_STREAMS)
+                        || !settings.containsKey(RawFrame.SETTINGS_INITIAL_WINDOW_SIZE)) {
+                    RawFrame frame = RawFrame.read(source);
+                    if (frame.type == RawFrame.TYPE_SETTINGS && (frame.flags & RawFrame.FLAG_ACK) == 0) {
+                        settings.putAll(frame.settings());
+                    }
+                }
+                assertThat(settings)
+                        .containsEntry(RawFrame.SETTINGS_MAX_CONCURRENT_STREAMS, 3)
+                        .containsEntry(RawFrame.SETTINGS_INITIAL_WINDOW_SIZE, 1024);
+            }
+        }
+
+        @Test
+        @DisplayName("should write response bodies in DATA frames of the profile's size")
+        public void responseFrameSize() throws Exception {
+            String body = "0123456789abcdefghijklmnopqrstuvwxyz";
+            server.setHttp2Profile(new Http2Profile().setResponseFrameSize(10));
+            server.enqueue(new MockResponse().setBody(body));
+            server.start();
+
+            try (Socket socket = new Socket(server.getHostName(), server.getPort())) {
+                socket.setSoTimeout(5000);
+                BufferedSource source = Okio.buffer(Okio.source(socket));
+                BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                writeClientPreface(sink);
+                writeRawGet(sink, 1);
+
+                List<Integer> dataFrameSizes = new ArrayList<>();
+                Buffer received = new Buffer();
+                RawFrame frame;
+                do {
+                    frame = RawFrame.read(source);
+                    // Closing the stream may send an empty DATA frame to end it.
+                    if (frame.type == RawFrame.TYPE_DATA && frame.streamId == 1 && frame.payload.size() > 0) {
+                        dataFrameSizes.add(frame.payload.size());
+                        received.write(frame.payload);
+                    }
+                } while (frame.type != RawFrame.TYPE_DATA || (frame.flags & RawFrame.FLAG_END_STREAM) == 0);
+                assertThat(dataFrameSizes).containsExactly(10, 10, 10, 6);
+                assertThat(received.readUtf8()).isEqualTo(body);
+            }
+        }
+
+        @Test
+        @DisplayName("should refuse response frame sizes below one byte")
+        public void responseFrameSizeBounds() {
+            new Http2Profile().setResponseFrameSize(1);
+            assertThatThrownBy(() -> new Http2Profile().setResponseFrameSize(0))
+                    .isExactlyInstanceOf(IllegalArgumentException.class);
+        }
+
+        @Test
+        @DisplayName("should answer the connection preface with SETTINGS")
+        public void priorKnowledge() throws Exception {
+            server.start();
+
+            try (Socket socket = new Socket(server.getHostName(), server.getPort())) {
+                socket.setSoTimeout(5000);
+                OutputStream out = socket.getOutputStream();
+                out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.write(new byte[]{0, 0, 0, 4, 0, 0, 0, 0, 0}); // Empty SETTINGS frame.
+                out.flush();
+
+                // The server's first frame is its SETTINGS frame: length (3 bytes), then type 4.
+                InputStream in = socket.getInputStream();
+                for (int i = 0; i < 3; i++) {
+                    assertThat(in.read()).isNotEqualTo(-1);
+                }
+                assertThat(in.read()).isEqualTo(4);
+            }
+        }
+
+        @Test
+        @DisplayName("should serve cleartext HTTP/2 requests with prior knowledge")
+        public void priorKnowledgeRequest() throws Exception {
+            server.enqueue(new MockResponse().setBody("hello"));
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "GET", "/", false);
+                assertThat(Okio.buffer(stream.getSource()).readUtf8()).isEqualTo("hello");
+            } finally {
+                connection.close();
+            }
 
             RecordedRequest request = server.takeRequest();
-            assertThat(request.getRequestLine()).isEqualTo("GET /a/deep/path?key=foo%20bar HTTP/1.1");
+            assertThat(request.getConnection().getProtocol()).isEqualTo(Protocol.HTTP_2);
+            assertThat(request.getConnection().getTlsVersion()).isNull();
+        }
 
-            HttpUrl requestUrl = request.getRequestUrl();
-            assertThat(requestUrl.scheme()).isEqualTo("http");
-            assertThat(server.getHostName()).isEqualTo(requestUrl.host());
-            assertThat(server.getPort()).isEqualTo(requestUrl.port());
-            assertThat(requestUrl.encodedPath()).isEqualTo("/a/deep/path");
-            assertThat(requestUrl.queryParameter("key")).isEqualTo("foo bar");
+        @Test
+        @DisplayName("should count pushes without recording them when recording is off")
+        public void pushesNotRecorded() throws Exception {
+            server.setRecordPushPromises(false);
+            server.enqueue(new MockResponse()
+                    .setBody("main")
+                    .withPush(new PushPromise("GET", "/a.css", Headers.of("accept", "text/css"),
+                            new MockResponse().setBody("a")))
+                    .withPush(new PushPromise("GET", "/b.css", Headers.of("accept", "text/css"),
+                            new MockResponse().setBody("b"))));
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "GET", "/", false);
+                assertThat(Okio.buffer(stream.getSource()).readUtf8()).isEqualTo("main");
+            } finally {
+                connection.close();
+            }
+
+            assertThat(server.getPushCount()).isEqualTo(2);
+            assertThat(server.takeRequest().getPath()).isEqualTo("/");
+            assertThat(server.takeRequest(100, TimeUnit.MILLISECONDS)).isNull();
+        }
+
+        @Test
+        @DisplayName("should record pushes as requests by default")
+        public void pushesRecorded() throws Exception {
+            server.enqueue(new MockResponse()
+                    .setBody("main")
+                    .withPush(new PushPromise("GET", "/a.css", Headers.of("accept", "text/css"),
+                            new MockResponse().setBody("a"))));
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "GET", "/", false);
+                assertThat(Okio.buffer(stream.getSource()).readUtf8()).isEqualTo("main");
+            } finally {
+                connection.close();
+            }
+
+            assertThat(server.getPushCount()).isEqualTo(1);
+            assertThat(server.takeRequest().getPath()).isEqualTo("/");
+            assertThat(server.takeRequest().getRequestLine()).isEqualTo("GET /a.css HTTP/1.1");
         }
     }
 
+    @Nested
+    @DisplayName("Web sockets ")
+    class TestWebSockets {
+        @Test
+        @DisplayName("should play a scenario's script and echo messages")
+        public void scenario() throws Exception {
+            WebSocketScenario scenario = new WebSocketScenario()
+                    .addMessages(3, 5, 0, TimeUnit.MILLISECONDS)
+                    .setMode(WebSocketScenario.Mode.ECHO);
+            server.enqueue(new MockResponse().withWebSocketUpgrade(scenario));
+            server.start();
+
+            WebSocketClient client = new WebSocketClient();
+            WebSocket webSocket = client.connect();
+            try {
+                for (int i = 0; i < 3; i++) {
+                    assertThat(client.messages.poll(5, SECONDS)).isEqualTo("xxxxx");
+                }
+                webSocket.send("hello");
+                assertThat(client.messages.poll(5, SECONDS)).isEqualTo("hello");
+                webSocket.close(1000, null);
+                client.closed.get(5, SECONDS);
+            } finally {
+                client.shutdown();
+            }
+
+            assertThat(scenario.getConnectionCount()).isEqualTo(1);
+            assertThat(scenario.getOpenConnectionCount()).isZero();
+            assertThat(scenario.getMessagesSent()).isEqualTo(4);
+            assertThat(scenario.getBytesSent()).isEqualTo(20);
+            assertThat(scenario.getMessagesReceived()).isEqualTo(1);
+            assertThat(scenario.getBytesReceived()).isEqualTo(5);
+            assertThat(scenario.getFailureCount()).isZero();
+        }
+
+        @Test
+        @DisplayName("should broadcast to every subscriber")
+        public void hubBroadcast() throws Exception {
+            WebSocketHub hub = new WebSocketHub();
+            List<WebSocketClient> clients = new ArrayList<>();
+            server.start();
+            try {
+                for (int i = 0; i < 3; i++) {
+                    server.enqueue(new MockResponse().withWebSocketUpgrade(hub));
+                    WebSocketClient client = new WebSocketClient();
+                    client.connect();
+                    clients.add(client);
+                }
+                awaitSubscribers(hub, 3);
+
+                assertThat(hub.broadcast("tick")).isEqualTo(3);
+                assertThat(hub.broadcast("tock")).isEqualTo(3);
+                for (WebSocketClient client : clients) {
+                    assertThat(client.messages.poll(5, SECONDS)).isEqualTo("tick");
+                    assertThat(client.messages.poll(5, SECONDS)).isEqualTo("tock");
+                }
+            } finally {
+                for (WebSocketClient client : clients) {
+                    client.shutdown();
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("should deliver every frame in order to a slow subscriber when broadcasts block")
+        public void hubBlocksForSlowSubscriber() throws Exception {
+            WebSocketHub hub = new WebSocketHub()
+                    .setQueueCapacity(2)
+                    .setSlowConsumerPolicy(WebSocketHub.SlowConsumerPolicy.BLOCK);
+            server.enqueue(new MockResponse().withWebSocketUpgrade(hub));
+            server.start();
+
+            WebSocketClient client = new WebSocketClient() {
+                @Override
+                public void onMessage(WebSocket webSocket, String text) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    super.onMessage(webSocket, text);
+                }
+            };
+            try {
+                client.connect();
+                awaitSubscribers(hub, 1);
+
+                for (int i = 0; i < 50; i++) {
+                    assertThat(hub.broadcast(Integer.toString(i))).isEqualTo(1);
+                }
+                for (int i = 0; i < 50; i++) {
+                    assertThat(client.messages.poll(5, SECONDS)).isEqualTo(Integer.toString(i));
+                }
+                assertThat(hub.getFramesWritten()).isEqualTo(50);
+                assertThat(hub.getDroppedCount()).isZero();
+            } finally {
+                client.shutdown();
+            }
+        }
+
+        @Test
+        @DisplayName("should drop frames for a subscriber that doesn't keep up")
+        public void hubDropsForSlowSubscriber() throws Exception {
+            WebSocketHub hub = new WebSocketHub()
+                    .setQueueCapacity(1)
+                    .setSlowConsumerPolicy(WebSocketHub.SlowConsumerPolicy.DROP);
+            server.enqueue(new MockResponse().withWebSocketUpgrade(hub));
+            server.start();
+
+            try (Socket socket = upgradeWithoutReading()) {
+                awaitSubscribers(hub, 1);
+                ByteString payload = ByteString.of(new byte[64 * 1024]);
+                for (int i = 0; i < 1000 && hub.getDroppedCount() == 0; i++) {
+                    hub.broadcast(payload);
+                }
+
+                assertThat(hub.getDroppedCount()).isPositive();
+                assertThat(hub.getSubscriberCount()).isEqualTo(1);
+            }
+        }
+
+        @Test
+        @DisplayName("should disconnect a subscriber that doesn't keep up")
+        public void hubDisconnectsSlowSubscriber() throws Exception {
+            WebSocketHub hub = new WebSocketHub()
+                    .setQueueCapacity(1)
+                    .setSlowConsumerPolicy(WebSocketHub.SlowConsumerPolicy.DISCONNECT);
+            server.enqueue(new MockResponse().withWebSocketUpgrade(hub));
+            server.start();
+
+            try (Socket socket = upgradeWithoutReading()) {
+                awaitSubscribers(hub, 1);
+                ByteString payload = ByteString.of(new byte[64 * 1024]);
+                for (int i = 0; i < 1000 && hub.getDisconnectedCount() == 0; i++) {
+                    hub.broadcast(payload);
+                }
+
+                assertThat(hub.getDisconnectedCount()).isEqualTo(1);
+                assertThat(hub.getSubscriberCount()).isZero();
+                assertThat(hub.broadcast(payload)).isZero();
+
+                // The server closed the connection: what was written is followed by the end of the stream.
+                socket.setSoTimeout(5000);
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[64 * 1024];
+                while (in.read(buffer) != -1) {
+                }
+            }
+        }
+
+        private void awaitSubscribers(WebSocketHub hub, int count) throws InterruptedException {
+            for (int i = 0; i < 500 && hub.getSubscriberCount() < count; i++) {
+                Thread.sleep(10);
+            }
+            assertThat(hub.getSubscriberCount()).isEqualTo(count);
+        }
+
+        /**
+         * Upgrades a connection to a web socket, then leaves the frames the server sends unread.
+         */
+        private Socket upgradeWithoutReading() throws IOException {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress(server.getHostName(), server.getPort()));
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET / HTTP/1.1\r\n"
+                    + "Host: " + server.getHostName() + ":" + server.getPort() + "\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return socket;
+        }
+    }
+
+    @Nested
+    @DisplayName("Response bodies ")
+    class TestResponseBodies {
+        @Test
+        @DisplayName("should announce a chunked event stream once, even after a chunked body")
+        public void eventStreamAfterChunkedBody() {
+            MockResponse response = new MockResponse()
+                    .setChunkedBody("abc", 1)
+                    .setEventStream(new EventStream());
+            assertThat(response.getHeaders().values("Transfer-encoding")).containsExactly("chunked");
+        }
+
+        @Test
+        @DisplayName("should not send connection-specific headers over HTTP/2")
+        public void http2SkipsConnectionHeaders() throws Exception {
+            server.enqueue(new MockResponse()
+                    .addHeader("Connection", "keep-alive")
+                    .addHeader("Keep-Alive", "timeout=5")
+                    .setEventStream(new EventStream().addEvent(0, TimeUnit.MILLISECONDS, "a")));
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "GET", "/", false);
+                List<String> names = stream.takeResponseHeaders().stream()
+                        .map(header -> header.name.utf8().toLowerCase(Locale.US))
+                        .collect(Collectors.toList());
+                assertThat(names).contains(":status", "content-type", "cache-control");
+                assertThat(names).doesNotContain("connection", "keep-alive", "transfer-encoding");
+                assertThat(Okio.buffer(stream.getSource()).readUtf8()).isEqualTo("data: a\n\n");
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Test
+        @DisplayName("should stream scripted and sent events")
+        public void scriptedAndSentEvents() throws Exception {
+            EventStream eventStream = new EventStream()
+                    .addEvent(0, TimeUnit.MILLISECONDS, "tick", "1", "a")
+                    .keepOpen();
+            server.enqueue(new MockResponse().setEventStream(eventStream));
+            server.start();
+
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            assertThat(connection.getContentType()).isEqualTo("text/event-stream");
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            assertThat(reader.readLine()).isEqualTo("event: tick");
+            assertThat(reader.readLine()).isEqualTo("id: 1");
+            assertThat(reader.readLine()).isEqualTo("data: a");
+            assertThat(reader.readLine()).isEmpty();
+
+            eventStream.send("b\nc");
+            eventStream.complete();
+            assertThat(reader.readLine()).isEqualTo("data: b");
+            assertThat(reader.readLine()).isEqualTo("data: c");
+            assertThat(reader.readLine()).isEmpty();
+            assertThat(reader.readLine()).isNull();
+            assertThat(eventStream.getDeliveryStats().getCount()).isEqualTo(1);
+        }
+
+        @Test
+        @DisplayName("should end idle event streams that are kept open when the server shuts down")
+        public void eventStreamEndsOnShutdown() throws Exception {
+            server.enqueue(new MockResponse().setEventStream(new EventStream().keepOpen()));
+            server.start();
+
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            try {
+                assertThat(connection.getContentType()).isEqualTo("text/event-stream");
+
+                long startNanos = System.nanoTime();
+                server.shutdown();
+                assertThat(NANOSECONDS.toSeconds(System.nanoTime() - startNanos)).isLessThan(2);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Test
+        @DisplayName("should gzip compressible bodies for clients accepting it")
+        public void gzipNegotiation() throws Exception {
+            MockResponse response = new MockResponse().setBody("hello hello hello").setCompressible(true);
+            server.enqueue(response);
+            server.enqueue(response);
+            server.start();
+
+            URLConnection gzipConnection = server.url("/").url().openConnection();
+            gzipConnection.setRequestProperty("Accept-Encoding", "deflate;q=0.5, gzip");
+            assertThat(gzipConnection.getHeaderField("Content-Encoding")).isEqualTo("gzip");
+            assertThat(gzipConnection.getHeaderField("Vary")).isEqualTo("Accept-Encoding");
+            try (InputStream in = new GZIPInputStream(gzipConnection.getInputStream())) {
+                assertThat(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine())
+                        .isEqualTo("hello hello hello");
+            }
+
+            URLConnection identityConnection = server.url("/").url().openConnection();
+            identityConnection.setRequestProperty("Accept-Encoding", "identity");
+            assertThat(identityConnection.getHeaderField("Content-Encoding")).isNull();
+            assertThat(identityConnection.getContentLength()).isEqualTo(17);
+            identityConnection.getInputStream().close();
+        }
+
+        @Test
+        @DisplayName("should stop varying on Accept-Encoding when no longer compressible")
+        public void notCompressible() {
+            MockResponse response = new MockResponse().setBody("hello").setCompressible(true);
+            assertThat(response.getHeaders().get("Vary")).isEqualTo("Accept-Encoding");
+
+            response.setCompressible(false);
+            assertThat(response.getHeaders().get("Vary")).isNull();
+
+            MockResponse varyByCookie = new MockResponse().setHeader("Vary", "Cookie").setCompressible(false);
+            assertThat(varyByCookie.getHeaders().get("Vary")).isEqualTo("Cookie");
+        }
+
+        @Test
+        @DisplayName("should keep the other fields the response varies on")
+        public void compressibleKeepsVary() {
+            MockResponse response = new MockResponse()
+                    .setBody("hello")
+                    .setHeader("Vary", "Origin")
+                    .setCompressible(true)
+                    .setCompressible(true);
+            assertThat(response.getHeaders().values("Vary")).containsExactly("Origin, Accept-Encoding");
+
+            response.setCompressible(false);
+            assertThat(response.getHeaders().values("Vary")).containsExactly("Origin");
+
+            MockResponse varyByAnything = new MockResponse().setHeader("Vary", "*").setCompressible(true);
+            assertThat(varyByAnything.getHeaders().values("Vary")).containsExactly("*");
+        }
+
+        @Test
+        @DisplayName("should send chunked and already encoded bodies as is")
+        public void compressionSkipped() throws Exception {
+            server.enqueue(new MockResponse().setChunkedBody("hello hello hello", 5).setCompressible(true));
+            server.enqueue(new MockResponse()
+                    .setBody("already encoded")
+                    .setHeader("Content-Encoding", "br")
+                    .setCompressible(true));
+            server.start();
+
+            URLConnection chunked = server.url("/").url().openConnection();
+            chunked.setRequestProperty("Accept-Encoding", "gzip");
+            assertThat(chunked.getHeaderField("Content-Encoding")).isNull();
+            assertThat(new BufferedReader(new InputStreamReader(chunked.getInputStream(), StandardCharsets.UTF_8))
+                    .readLine()).isEqualTo("hello hello hello");
+
+            URLConnection encoded = server.url("/").url().openConnection();
+            encoded.setRequestProperty("Accept-Encoding", "gzip");
+            assertThat(encoded.getHeaderField("Content-Encoding")).isEqualTo("br");
+            assertThat(encoded.getContentLength()).isEqualTo(15);
+            encoded.getInputStream().close();
+        }
+
+        @Test
+        @DisplayName("should serve the requested slice of the body")
+        public void singleRange() throws Exception {
+            MockResponse response = new MockResponse().setBody("0123456789").setAcceptRanges(true);
+            server.enqueue(response);
+            server.enqueue(response);
+            server.start();
+
+            HttpURLConnection partial = (HttpURLConnection) server.url("/").url().openConnection();
+            partial.setRequestProperty("Range", "bytes=2-4");
+            assertThat(partial.getResponseCode()).isEqualTo(206);
+            assertThat(partial.getHeaderField("Content-Range")).isEqualTo("bytes 2-4/10");
+            assertThat(new BufferedReader(new InputStreamReader(partial.getInputStream())).readLine())
+                    .isEqualTo("234");
+
+            HttpURLConnection unsatisfiable = (HttpURLConnection) server.url("/").url().openConnection();
+            unsatisfiable.setRequestProperty("Range", "bytes=20-");
+            assertThat(unsatisfiable.getResponseCode()).isEqualTo(416);
+            assertThat(unsatisfiable.getHeaderField("Content-Range")).isEqualTo("bytes */10");
+        }
+
+        @Test
+        @DisplayName("should answer 416 when no range is satisfiable")
+        public void unsatisfiableRange() {
+            MockResponse response = new MockResponse().setBody("0123456789").setAcceptRanges(true);
+
+            MockResponse suffix = ByteRanges.apply(response, "bytes=-0", null);
+            assertThat(suffix.getStatus()).isEqualTo("HTTP/1.1 416 Range Not Satisfiable");
+            assertThat(suffix.getHeaders().get("Content-Range")).isEqualTo("bytes */10");
+            assertThat(suffix.getBody().size()).isZero();
+
+            assertThat(ByteRanges.apply(response, "bytes=10-12, 11-", null).getStatus())
+                    .isEqualTo("HTTP/1.1 416 Range Not Satisfiable");
+            // Malformed ranges are ignored rather than refused.
+            assertThat(ByteRanges.apply(response, "bytes=5-2", null)).isSameAs(response);
+            assertThat(response.getStatus()).isEqualTo("HTTP/1.1 200 OK");
+        }
+
+        @Test
+        @DisplayName("should serve the full body when If-Range doesn't match")
+        public void ifRangeMismatch() {
+            MockResponse response = new MockResponse().setBody("0123456789").setETag().setAcceptRanges(true);
+            String etag = response.getHeaders().get("ETag");
+
+            assertThat(ByteRanges.apply(response, "bytes=2-4", "\"stale\"")).isSameAs(response);
+            assertThat(ByteRanges.apply(response, "bytes=2-4", "W/" + etag)).isSameAs(response);
+            assertThat(ByteRanges.apply(response, "bytes=2-4", "Wed, 21 Oct 2015 07:28:00 GMT")).isSameAs(response);
+
+            MockResponse partial = ByteRanges.apply(response, "bytes=2-4", etag);
+            assertThat(partial.getStatus()).isEqualTo("HTTP/1.1 206 Partial Content");
+            assertThat(partial.getBody().readUtf8()).isEqualTo("234");
+        }
+
+        @Test
+        @DisplayName("should serve several ranges as multipart/byteranges")
+        public void multipleRanges() {
+            MockResponse response = new MockResponse()
+                    .setBody("0123456789")
+                    .setHeader("Content-Type", "text/plain")
+                    .setAcceptRanges(true);
+
+            MockResponse partial = ByteRanges.apply(response, "bytes=0-1, -2", null);
+            assertThat(partial.getStatus()).isEqualTo("HTTP/1.1 206 Partial Content");
+            String contentType = partial.getHeaders().get("Content-Type");
+            assertThat(contentType).startsWith("multipart/byteranges; boundary=");
+            String boundary = contentType.substring(contentType.indexOf('=') + 1);
+            assertThat(partial.getBody().readUtf8()).isEqualTo(""
+                    + "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Range: bytes 0-1/10\r\n\r\n"
+                    + "01"
+                    + "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Content-Range: bytes 8-9/10\r\n\r\n"
+                    + "89"
+                    + "\r\n--" + boundary + "--\r\n");
+        }
+
+        @Test
+        @DisplayName("should read a body without consuming it")
+        public void sharedBodySource() throws IOException {
+            Buffer body = new Buffer();
+            for (int i = 0; i < 5000; i++) {
+                body.writeUtf8("abcd"); // Spans several segments.
+            }
+            String expected = body.clone().readUtf8();
+
+            MockWebServer.SharedBodySource first = new MockWebServer.SharedBodySource(body);
+            MockWebServer.SharedBodySource second = new MockWebServer.SharedBodySource(body);
+            Buffer firstCopy = new Buffer();
+            Buffer secondCopy = new Buffer();
+            // Interleave small reads, like two clients being served the same body.
+            while (first.read(firstCopy, 3000) != -1 | second.read(secondCopy, 7) != -1) {
+            }
+
+            assertThat(firstCopy.readUtf8()).isEqualTo(expected);
+            assertThat(secondCopy.readUtf8()).isEqualTo(expected);
+            assertThat(body.size()).isEqualTo(20000);
+            assertThat(body.readUtf8()).isEqualTo(expected);
+        }
+
+        @Test
+        @DisplayName("should serve one body to several clients")
+        public void bodyServedTwice() throws Exception {
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 5000; i++) {
+                expected.append("abcd");
+            }
+            MockResponse response = new MockResponse().setBody(expected.toString());
+            server.enqueue(response);
+            server.enqueue(response);
+            server.start();
+
+            for (int i = 0; i < 2; i++) {
+                URLConnection connection = server.url("/").url().openConnection();
+                assertThat(new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))
+                        .readLine()).isEqualTo(expected.toString());
+            }
+            assertThat(response.getBody().readUtf8()).isEqualTo(expected.toString());
+        }
+
+        @Test
+        @DisplayName("should serve a frozen response many times without copying it")
+        public void frozenResponse() throws Exception {
+            MockResponse response = new MockResponse().setBody("hello").freeze();
+            assertThatThrownBy(() -> response.setBody("bye")).isExactlyInstanceOf(IllegalStateException.class);
+            assertThat(response.clone().setBody("bye").isFrozen()).isFalse();
+            server.enqueue(response);
+            server.enqueue(response);
+            server.start();
+
+            for (int i = 0; i < 2; i++) {
+                URLConnection connection = server.url("/").url().openConnection();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                    assertThat(reader.readLine()).isEqualTo("hello");
+                }
+            }
+            assertThat(response.getBody().readUtf8()).isEqualTo("hello");
+        }
+
+        @Test
+        @DisplayName("should negotiate encodings of a frozen response without changing it")
+        public void frozenCompressibleResponse() throws Exception {
+            MockResponse response = new MockResponse()
+                    .setBody("hello hello hello")
+                    .setCompressible(true)
+                    .freeze();
+            assertThatThrownBy(() -> response.addHeader("X-Late", "1"))
+                    .isExactlyInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(() -> response.setResponseCode(404))
+                    .isExactlyInstanceOf(IllegalStateException.class);
+            server.enqueue(response);
+            server.enqueue(response);
+            server.start();
+
+            URLConnection gzip = server.url("/").url().openConnection();
+            gzip.setRequestProperty("Accept-Encoding", "gzip");
+            assertThat(gzip.getHeaderField("Content-Encoding")).isEqualTo("gzip");
+            gzip.getInputStream().close();
+
+            URLConnection identity = server.url("/").url().openConnection();
+            identity.setRequestProperty("Accept-Encoding", "identity");
+            assertThat(identity.getHeaderField("Content-Encoding")).isNull();
+            identity.getInputStream().close();
+
+            assertThat(response.isFrozen()).isTrue();
+            assertThat(response.getHeaders().get("Content-Encoding")).isNull();
+            assertThat(response.getHeaders().get("Content-Length")).isEqualTo("17");
+        }
+    }
+
+    @Nested
+    @DisplayName("Request bodies ")
+    class TestRequestBodies {
+        @Test
+        @DisplayName("should inflate and digest gzip request bodies")
+        public void gzipRequestBodyIngest() throws Exception {
+            server.setDecodeRequestBodies(true);
+            server.setRequestBodyDigestAlgorithm("SHA-256");
+            server.enqueue(new MockResponse());
+            server.start();
+
+            byte[] plain = "hello hello hello".getBytes(StandardCharsets.UTF_8);
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            try (OutputStream out = new GZIPOutputStream(connection.getOutputStream())) {
+                out.write(plain);
+            }
+            connection.getInputStream().close();
+
+            RecordedRequest request = server.takeRequest();
+            assertThat(request.getDecodedBodySize()).isEqualTo(plain.length);
+            assertThat(request.getBodyDigest()).isEqualTo(ByteString.of(plain).sha256());
+            assertThat(request.getBodyDecodingError()).isNull();
+        }
+
+        @Test
+        @DisplayName("should record why a request body couldn't be inflated")
+        public void truncatedGzipRequestBody() throws Exception {
+            server.setDecodeRequestBodies(true);
+            server.enqueue(new MockResponse());
+            server.start();
+
+            Buffer gzipped = new Buffer();
+            try (OutputStream out = new GZIPOutputStream(gzipped.outputStream())) {
+                out.write("hello hello hello".getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] truncated = gzipped.readByteArray(gzipped.size() - 4);
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(truncated);
+            }
+            connection.getInputStream().close();
+
+            RecordedRequest request = server.takeRequest();
+            assertThat(request.getBodySize()).isEqualTo(truncated.length);
+            assertThat(request.getBodyDecodingError()).isNotNull();
+        }
+
+        @Test
+        @DisplayName("should record the parts of multipart bodies")
+        public void parts() throws Exception {
+            server.setParseMultipartBodies(true);
+            server.setRequestBodyDigestAlgorithm("SHA-256");
+            server.setBodyLimit(0);
+            server.enqueue(new MockResponse());
+            server.start();
+
+            String body = "--b0undary\r\n"
+                    + "Content-Disposition: form-data; name=\"title\"\r\n"
+                    + "\r\n"
+                    + "hello\r\n"
+                    + "--b0undary\r\n"
+                    + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "\r\n"
+                    + "0123456789\r\n"
+                    + "--b0undary--\r\n";
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=b0undary");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            connection.getInputStream().close();
+
+            RecordedRequest request = server.takeRequest();
+            assertThat(request.getBody().size()).isEqualTo(0);
+            assertThat(request.getMultipartError()).isNull();
+            assertThat(request.getParts()).hasSize(2);
+            RecordedPart file = request.getParts().get(1);
+            assertThat(file.getName()).isEqualTo("file");
+            assertThat(file.getFilename()).isEqualTo("a.txt");
+            assertThat(file.getHeader("Content-Type")).isEqualTo("text/plain");
+            assertThat(file.getSize()).isEqualTo(10);
+            assertThat(file.getDigest()).isEqualTo(ByteString.encodeUtf8("0123456789").sha256());
+        }
+
+        @Test
+        @DisplayName("should record why a multipart body couldn't be parsed")
+        public void truncatedMultipart() throws Exception {
+            server.setParseMultipartBodies(true);
+            server.enqueue(new MockResponse());
+            server.start();
+
+            String body = "--b0undary\r\n"
+                    + "Content-Disposition: form-data; name=\"title\"\r\n"
+                    + "\r\n"
+                    + "hel";
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=b0undary");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            connection.getInputStream().close();
+
+            RecordedRequest request = server.takeRequest();
+            assertThat(request.getMultipartError()).isEqualTo("truncated multipart body");
+            assertThat(request.getBody().readUtf8()).isEqualTo(body);
+        }
+
+        @Test
+        @DisplayName("should record the parts of HTTP/2 multipart bodies")
+        public void http2Parts() throws Exception {
+            server.setParseMultipartBodies(true);
+            server.setBodyLimit(0);
+            server.enqueue(new MockResponse());
+            server.start();
+
+            String body = "--b0undary\r\n"
+                    + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+                    + "\r\n"
+                    + "0123456789\r\n"
+                    + "--b0undary--\r\n";
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "POST", "/", true,
+                        new Header("content-type", "multipart/form-data; boundary=b0undary"));
+                BufferedSink sink = Okio.buffer(stream.getSink());
+                sink.writeUtf8(body);
+                sink.close();
+
+                RecordedRequest request = server.takeRequest();
+                assertThat(request.getBodySize()).isEqualTo(body.length());
+                assertThat(request.getBody().size()).isZero();
+                assertThat(request.getMultipartError()).isNull();
+                assertThat(request.getParts()).hasSize(1);
+                assertThat(request.getParts().get(0).getFilename()).isEqualTo("a.txt");
+                assertThat(request.getParts().get(0).getSize()).isEqualTo(10);
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Test
+        @DisplayName("should truncate HTTP/2 request bodies to the body limit")
+        public void http2BodyLimit() throws Exception {
+            server.setBodyLimit(4);
+            server.enqueue(new MockResponse());
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "POST", "/", true);
+                BufferedSink sink = Okio.buffer(stream.getSink());
+                sink.writeUtf8("0123456789");
+                sink.close();
+
+                RecordedRequest request = server.takeRequest();
+                assertThat(request.getBodySize()).isEqualTo(10);
+                assertThat(request.getBody().readUtf8()).isEqualTo("0123");
+            } finally {
+                connection.close();
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Conditional requests ")
+    class TestConditionalRequests {
+        @Test
+        @DisplayName("should answer revalidations with 304 Not Modified")
+        public void notModified() throws Exception {
+            MockResponse response = new MockResponse()
+                    .setBody("0123456789")
+                    .setETag()
+                    .setCacheControl(MockResponse.CachePreset.NO_CACHE)
+                    .setEvaluatePreconditions(true);
+            server.enqueue(response);
+            server.enqueue(response);
+            server.start();
+
+            HttpURLConnection full = (HttpURLConnection) server.url("/").url().openConnection();
+            assertThat(full.getResponseCode()).isEqualTo(200);
+            String etag = full.getHeaderField("ETag");
+            full.getInputStream().close();
+
+            HttpURLConnection revalidation = (HttpURLConnection) server.url("/").url().openConnection();
+            revalidation.setRequestProperty("If-None-Match", etag);
+            assertThat(revalidation.getResponseCode()).isEqualTo(304);
+            assertThat(revalidation.getHeaderField("Cache-Control")).isEqualTo("no-cache");
+            assertThat(server.getNotModifiedCount()).isEqualTo(1);
+            assertThat(server.getFullResponseCount()).isEqualTo(1);
+        }
+
+        @Test
+        @DisplayName("should compare entity tags with the weak comparison function")
+        public void ifNoneMatch() throws Exception {
+            MockResponse response = new MockResponse()
+                    .setBody("0123456789")
+                    .setETag()
+                    .setEvaluatePreconditions(true);
+            String etag = response.getHeaders().get("ETag");
+            startServing(response);
+
+            assertThat(statusOf("GET", "If-None-Match", etag)).isEqualTo(304);
+            assertThat(statusOf("GET", "If-None-Match", "W/" + etag)).isEqualTo(304);
+            assertThat(statusOf("GET", "If-None-Match", "\"other\", " + etag)).isEqualTo(304);
+            assertThat(statusOf("GET", "If-None-Match", "*")).isEqualTo(304);
+            assertThat(statusOf("GET", "If-None-Match", "\"other\"")).isEqualTo(200);
+            assertThat(statusOf("POST", "If-None-Match", etag)).isEqualTo(200);
+            assertThat(server.getNotModifiedCount()).isEqualTo(4);
+            assertThat(server.getFullResponseCount()).isEqualTo(2);
+        }
+
+        @Test
+        @DisplayName("should compare modification dates when there is no entity tag to compare")
+        public void ifModifiedSince() throws Exception {
+            MockResponse response = new MockResponse()
+                    .setBody("0123456789")
+                    .setHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT")
+                    .setEvaluatePreconditions(true);
+            startServing(response);
+
+            assertThat(statusOf("GET", "If-Modified-Since", "Wed, 21 Oct 2015 07:28:00 GMT")).isEqualTo(304);
+            assertThat(statusOf("GET", "If-Modified-Since", "Thu, 22 Oct 2015 07:28:00 GMT")).isEqualTo(304);
+            assertThat(statusOf("GET", "If-Modified-Since", "Tue, 20 Oct 2015 07:28:00 GMT")).isEqualTo(200);
+            assertThat(statusOf("GET", "If-Modified-Since", "not a date")).isEqualTo(200);
+            // If-None-Match takes precedence, and the response has no entity tag.
+            HttpURLConnection both = (HttpURLConnection) server.url("/").url().openConnection();
+            both.setRequestProperty("If-None-Match", "\"0123\"");
+            both.setRequestProperty("If-Modified-Since", "Thu, 22 Oct 2015 07:28:00 GMT");
+            assertThat(both.getResponseCode()).isEqualTo(200);
+            both.getInputStream().close();
+        }
+
+        private void startServing(MockResponse response) throws IOException {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return response;
+                }
+            });
+            server.start();
+        }
+
+        private int statusOf(String method, String header, String value) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            connection.setRequestMethod(method);
+            connection.setRequestProperty(header, value);
+            if (method.equals("POST")) {
+                connection.setDoOutput(true);
+                connection.getOutputStream().close();
+            }
+            int result = connection.getResponseCode();
+            if (result == 200) connection.getInputStream().close();
+            return result;
+        }
+    }
+
+    @Nested
+    @DisplayName("Dispatchers ")
+    class TestDispatchers {
+        @Test
+        @DisplayName("should repeat, cycle and rotate responses by weight")
+        public void compactEntries() throws Exception {
+            MockResponse a = new MockResponse().setBody("a");
+            MockResponse b = new MockResponse().setBody("b");
+            MockResponse c = new MockResponse().setBody("c");
+            LinkedHashMap<MockResponse, Integer> weights = new LinkedHashMap<>();
+            weights.put(a, 5);
+            weights.put(b, 1);
+            weights.put(c, 1);
+            QueueDispatcher dispatcher = new QueueDispatcher();
+            dispatcher.enqueueResponse(a, 2);
+            dispatcher.enqueueCycle(Arrays.asList(b, c), 2);
+            dispatcher.enqueueWeighted(weights, QueueDispatcher.FOREVER);
+            server.setDispatcher(dispatcher);
+            server.start();
+
+            StringBuilder bodies = new StringBuilder();
+            for (int i = 0; i < 13; i++) {
+                URLConnection connection = server.url("/").url().openConnection();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                    bodies.append(reader.readLine());
+                }
+            }
+            assertThat(bodies.toString()).isEqualTo("aabcbcaabacaa");
+        }
+
+        @Test
+        @DisplayName("should break weight ties in iteration order, then move on to the next entry")
+        public void weightedTies() throws Exception {
+            MockResponse a = new MockResponse().setBody("a");
+            MockResponse b = new MockResponse().setBody("b");
+            LinkedHashMap<MockResponse, Integer> ab = new LinkedHashMap<>();
+            ab.put(a, 1);
+            ab.put(b, 1);
+            LinkedHashMap<MockResponse, Integer> ba = new LinkedHashMap<>();
+            ba.put(b, 2);
+            ba.put(a, 2);
+            QueueDispatcher dispatcher = new QueueDispatcher();
+            dispatcher.enqueueWeighted(ab, 3);
+            dispatcher.enqueueWeighted(ba, 4);
+            dispatcher.enqueueResponse(new MockResponse().setBody("c"));
+
+            StringBuilder bodies = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                String peeked = dispatcher.peek().getBody().readUtf8();
+                String body = dispatcher.dispatch(bookkeepingRequest()).getBody().readUtf8();
+                assertThat(body).isEqualTo(peeked);
+                bodies.append(body);
+            }
+            assertThat(bodies.toString()).isEqualTo("abababac");
+        }
+
+        @Test
+        @DisplayName("should refuse empty scripts and non-positive weights or counts")
+        public void compactEntryValidation() {
+            QueueDispatcher dispatcher = new QueueDispatcher();
+            MockResponse a = new MockResponse().setBody("a");
+            LinkedHashMap<MockResponse, Integer> zeroWeight = new LinkedHashMap<>();
+            zeroWeight.put(a, 0);
+
+            assertThatThrownBy(() -> dispatcher.enqueueResponse(a, 0))
+                    .isExactlyInstanceOf(IllegalArgumentException.class);
+            assertThatThrownBy(() -> dispatcher.enqueueCycle(Collections.emptyList(), 1))
+                    .isExactlyInstanceOf(IllegalArgumentException.class);
+            assertThatThrownBy(() -> dispatcher.enqueueWeighted(new LinkedHashMap<>(), 1))
+                    .isExactlyInstanceOf(IllegalArgumentException.class);
+            assertThatThrownBy(() -> dispatcher.enqueueWeighted(zeroWeight, 1))
+                    .isExactlyInstanceOf(IllegalArgumentException.class);
+        }
+
+        @Test
+        @DisplayName("should answer a request once its response stage completes")
+        public void asyncDispatch() throws Exception {
+            CompletableFuture<MockResponse> pending = new CompletableFuture<>();
+            server.setDispatcher(new AsyncDispatcher() {
+                @Override
+                public CompletionStage<MockResponse> dispatchAsync(RecordedRequest request) {
+                    return pending;
+                }
+            });
+            server.start();
+
+            URLConnection connection = server.url("/").url().openConnection();
+            CompletableFuture<String> body = CompletableFuture.supplyAsync(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                    return reader.readLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            assertThat(server.takeRequest().getPath()).isEqualTo("/");
+            assertThat(body.isDone()).isFalse();
+
+            pending.complete(new MockResponse().setBody("later"));
+            assertThat(body.get(5, SECONDS)).isEqualTo("later");
+        }
+
+        @Test
+        @DisplayName("should close the connection when a pending response stage fails")
+        public void asyncDispatchFailure() throws Exception {
+            CompletableFuture<MockResponse> pending = new CompletableFuture<>();
+            server.setDispatcher(new AsyncDispatcher() {
+                @Override
+                public CompletionStage<MockResponse> dispatchAsync(RecordedRequest request) {
+                    return pending;
+                }
+            });
+            server.start();
+
+            HttpURLConnection connection = (HttpURLConnection) server.url("/").url().openConnection();
+            CompletableFuture<Integer> responseCode = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return connection.getResponseCode();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            server.takeRequest();
+            pending.completeExceptionally(new IllegalStateException("boom"));
+
+            assertThatThrownBy(() -> responseCode.get(5, SECONDS))
+                    .hasCauseInstanceOf(UncheckedIOException.class);
+        }
+
+        @Test
+        @DisplayName("should close the connection when a response stage has already failed")
+        public void asyncDispatchFailedAlready() throws Exception {
+            server.setDispatcher(new AsyncDispatcher() {
+                @Override
+                public CompletionStage<MockResponse> dispatchAsync(RecordedRequest request) {
+                    CompletableFuture<MockResponse> result = new CompletableFuture<>();
+                    result.completeExceptionally(new IllegalStateException("boom"));
+                    return result;
+                }
+            });
+            server.start();
+
+            try (Socket socket = new Socket(server.getHostName(), server.getPort())) {
+                socket.setSoTimeout(5000);
+                OutputStream out = socket.getOutputStream();
+                out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                assertThat(socket.getInputStream().read()).isEqualTo(-1);
+            }
+        }
+
+        @Test
+        @DisplayName("should reset the HTTP/2 stream when its response stage fails")
+        public void asyncDispatchFailureResetsStream() throws Exception {
+            CompletableFuture<MockResponse> pending = new CompletableFuture<>();
+            server.setDispatcher(new AsyncDispatcher() {
+                @Override
+                public CompletionStage<MockResponse> dispatchAsync(RecordedRequest request) {
+                    return pending;
+                }
+            });
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                Http2Stream stream = http2Request(connection, "GET", "/", false);
+                server.takeRequest();
+                pending.completeExceptionally(new IllegalStateException("boom"));
+
+                assertThatThrownBy(stream::takeResponseHeaders)
+                        .isInstanceOfSatisfying(StreamResetException.class,
+                                e -> assertThat(e.errorCode).isEqualTo(ErrorCode.INTERNAL_ERROR));
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Test
+        @DisplayName("should peek once per HTTP/1 connection and once per request")
+        public void peekPerRequest() throws Exception {
+            AtomicInteger peeks = countingDispatcher();
+            server.start();
+
+            try (Socket socket = new Socket(server.getHostName(), server.getPort())) {
+                socket.setSoTimeout(5000);
+                BufferedSink sink = Okio.buffer(Okio.sink(socket));
+                BufferedSource source = Okio.buffer(Okio.source(socket));
+                for (int i = 0; i < 2; i++) {
+                    sink.writeUtf8("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n").flush();
+                    assertThat(source.readUtf8LineStrict()).isEqualTo("HTTP/1.1 200 OK");
+                    while (!source.readUtf8LineStrict().isEmpty()) {
+                        // Skip the response headers.
+                    }
+                    assertThat(source.readUtf8(2)).isEqualTo("ok");
+                }
+                assertThat(peeks.get()).isEqualTo(1 + 2);
+            }
+        }
+
+        @Test
+        @DisplayName("should peek once per HTTP/2 connection and once per stream")
+        public void peekPerStream() throws Exception {
+            AtomicInteger peeks = countingDispatcher();
+            server.start();
+
+            Http2Connection connection = http2Connection(Http2Connection.Listener.REFUSE_INCOMING_STREAMS);
+            try {
+                for (int i = 0; i < 2; i++) {
+                    Http2Stream stream = http2Request(connection, "GET", "/", false);
+                    assertThat(Okio.buffer(stream.getSource()).readUtf8()).isEqualTo("ok");
+                }
+                assertThat(peeks.get()).isEqualTo(1 + 2);
+            } finally {
+                connection.close();
+            }
+        }
+
+        private AtomicInteger countingDispatcher() {
+            AtomicInteger peeks = new AtomicInteger();
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return new MockResponse().setBody("ok");
+                }
+
+                @Override
+                public MockResponse peek() {
+                    peeks.incrementAndGet();
+                    return super.peek();
+                }
+            });
+            return peeks;
+        }
+    }
+
+    @Nested
+    @DisplayName("Server start")
+    class TestServerStart {
+        @BeforeEach
+        public void setUp() throws Exception {
+            server.start();
+        }
+
+        @AfterEach
+        public void tearDown() throws Exception {
+            server.shutdown();
+        }
+
+        @Test
+        @DisplayName("should attribute a random port")
+        public void portImplicitlyStarts() throws IOException {
+            assertThat(server.getPort() > 0).isTrue();
+        }
+
+        @Test
+        @DisplayName("should set the hostname")
+        public void hostnameImplicitlyStarts() throws IOException {
+            assertThat(server.getHostName()).isNotEmpty();
+        }
+
+        @Test
+        @DisplayName("should set the proxy adress")
+        public void toProxyAddressImplicitlyStarts() throws IOException {
+            assertThat(server.toProxyAddress()).isNotNull();
+        }
+
+        @Test
+        @DisplayName("should attribute different port to servers")
+        public void differentInstancesGetDifferentPorts() throws IOException {
+            MockWebServer other = new MockWebServer();
+            assertThat(server.getPort()).isNotEqualTo(other.getPort());
+            other.shutdown();
+        }
+
+        @Test
+        @DisplayName("should continue on code status 100")
+        public void http100Continue() throws Exception {
+            server.enqueue(new MockResponse().setBody("response"));
+
+            URL url = server.url("/").url();
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Expect", "100-Continue");
+            connection.getOutputStream().write("request".getBytes(StandardCharsets.UTF_8));
+
+            InputStream in = connection.getInputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            assertThat(reader.readLine()).isEqualTo("response");
+
+            RecordedRequest request = server.takeRequest();
+            assertThat(request.getBody().readUtf8()).isEqualTo("request");
+        }
+
+        @Test
+        @DisplayName("should reconstruct URL")
+        public void requestUrlReconstructed() throws Exception {
+            server.enqueue(new MockResponse().setBody("hello world"));
+
+            URL url = server.url("/a/deep/path?key=foo%20bar").url();
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            InputStream in = connection.getInputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+            assertThat(connection.getResponseCode()).isEqualTo(HttpURLConnection.HTTP_OK);
+            assertThat(reader.readLine()).isEqualTo("hello world");
+
+            RecordedRequest request = server.takeRequest();
+            assertThat(request.getRequestLine()).isEqualTo("GET /a/deep/path?key=foo%20bar HTTP/1.1");
+
+            HttpUrl requestUrl = request.getRequestUrl();
+            assertThat(requestUrl.scheme()).isEqualTo("http");
+            assertThat(server.getHostName()).isEqualTo(requestUrl.host());
+            assertThat(server.getPort()).isEqualTo(requestUrl.port());
+            assertThat(requestUrl.encodedPath()).isEqualTo("/a/deep/path");
+            assertThat(requestUrl.queryParameter("key")).isEqualTo("foo bar");
+        }
+    }
+
+    /**
+     * Opens a cleartext HTTP/2 connection to {@link #server} with prior knowledge.
+     */
+    private Http2Connection http2Connection(Http2Connection.Listener listener) throws IOException {
+        Socket socket = new Socket(server.getHostName(), server.getPort());
+        Http2Connection connection = new Http2Connection.Builder(true)
+                .socket(socket)
+                .listener(listener)
+                .pushObserver(ACCEPT_PUSHES)
+                .build();
+        connection.start();
+        return connection;
+    }
+
+    private Http2Stream http2Request(Http2Connection connection, String method, String path, boolean hasBody,
+                                     Header... headers) throws IOException {
+        List<Header> requestHeaders = new ArrayList<>(Arrays.asList(
+                new Header(Header.TARGET_METHOD, method),
+                new Header(Header.TARGET_PATH, path),
+                new Header(Header.TARGET_SCHEME, "http"),
+                new Header(Header.TARGET_AUTHORITY, server.getHostName() + ":" + server.getPort())));
+        requestHeaders.addAll(Arrays.asList(headers));
+        return connection.newStream(requestHeaders, hasBody);
+    }
+
+    /**
+     * Writes the connection preface of a cleartext HTTP/2 client, followed by empty SETTINGS.
+     */
+    private static void writeClientPreface(BufferedSink sink) throws IOException {
+        sink.writeUtf8("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+        RawFrame.write(sink, RawFrame.TYPE_SETTINGS, 0, 0, ByteString.EMPTY);
+        sink.flush();
+    }
+
+    /**
+     * Writes a HEADERS frame that requests {@code GET /} on {@code streamId}.
+     */
+    private void writeRawGet(BufferedSink sink, int streamId) throws IOException {
+        String authority = server.getHostName() + ":" + server.getPort();
+        Buffer headerBlock = new Buffer()
+                .writeByte(0x82) // :method GET, from the HPACK static table.
+                .writeByte(0x84) // :path /
+                .writeByte(0x86) // :scheme http
+                .writeByte(0x41) // :authority, with a literal value.
+                .writeByte(authority.length())
+                .writeUtf8(authority);
+        RawFrame.write(sink, RawFrame.TYPE_HEADERS, RawFrame.FLAG_END_STREAM | RawFrame.FLAG_END_HEADERS,
+                streamId, headerBlock.readByteString());
+        sink.flush();
+    }
+
+    /**
+     * An HTTP/2 frame as it is on the wire, for tests that check what OkHttp's client hides.
+     */
+    private static final class RawFrame {
+        // Frame types, flags and setting identifiers from https://tools.ietf.org/html/rfc7540.
+        static final int TYPE_DATA = 0x0;
+        static final int TYPE_HEADERS = 0x1;
+        static final int TYPE_SETTINGS = 0x4;
+        static final int FLAG_END_STREAM = 0x1;
+        static final int FLAG_ACK = 0x1;
+        static final int FLAG_END_HEADERS = 0x4;
+        static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+        static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+        final int type;
+        final int flags;
+        final int streamId;
+        final ByteString payload;
+
+        private RawFrame(int type, int flags, int streamId, ByteString payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+
+        static RawFrame read(BufferedSource source) throws IOException {
+            int length = (source.readByte() & 0xff) << 16
+                    | (source.readByte() & 0xff) << 8
+                    | (source.readByte() & 0xff);
+            int type = source.readByte() & 0xff;
+            int flags = source.readByte() & 0xff;
+            int streamId = source.readInt() & 0x7fffffff;
+            return new RawFrame(type, flags, streamId, source.readByteString(length));
+        }
+
+        static void write(BufferedSink sink, int type, int flags, int streamId, ByteString payload)
+                throws IOException {
+            int length = payload.size();
+            sink.writeByte(length >>> 16).writeByte(length >>> 8).writeByte(length);
+            sink.writeByte(type).writeByte(flags).writeInt(streamId).write(payload);
+        }
+
+        /** Returns the values of this SETTINGS frame by identifier. */
+        Map<Integer, Integer> settings() {
+            Map<Integer, Integer> result = new HashMap<>();
+            Buffer buffer = new Buffer().write(payload);
+            while (!buffer.exhausted()) {
+                result.put(buffer.readShort() & 0xffff, buffer.readInt());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Connects web sockets to {@link #server} and collects the messages they receive.
+     */
+    private class WebSocketClient extends WebSocketListener {
+        final OkHttpClient client = new OkHttpClient();
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final CompletableFuture<Integer> closed = new CompletableFuture<>();
+
+        WebSocket connect() {
+            return client.newWebSocket(new Request.Builder().url(server.url("/")).build(), this);
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            messages.add(text);
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(1000, null);
+        }
+
+        @Override
+        public void onClosed(WebSocket webSocket, int code, String reason) {
+            closed.complete(code);
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+            closed.completeExceptionally(t);
+        }
+
+        void shutdown() {
+            client.dispatcher().executorService().shutdown();
+        }
+    }
+
+    /**
+     * Returns a request without a request line nor a connection, to call dispatchers directly.
+     */
+    private static RecordedRequest bookkeepingRequest() {
+        return new RecordedRequest(null, Headers.of(), Collections.<Integer>emptyList(), 0, new Buffer(), 0, null);
+    }
 }